@@ -0,0 +1,191 @@
+package nl.saxion.cos;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks every phase of the compiler separately and the whole pipeline end-to-end. Every phase
+ * gets the output of the previous phases prepared in advance, so only the phase itself is measured.
+ *
+ * The programs are the ones in testFiles plus synthetic programs of several sizes, see
+ * ProgramGenerator. Run from the project root, so the testFiles can be found. The JMH Scope is
+ * written out in full because nl.saxion.cos.Scope has the same name.
+ */
+@State(org.openjdk.jmh.annotations.Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+
+    @Param({
+            "testFiles/ForLoop/forloops.pc",
+            "testFiles/IfStatement/ifStatement.pc",
+            "testFiles/MathEquations/Math.pc",
+            "testFiles/MethodCreation/Methods.pc",
+            "testFiles/WhileLoop/while.pc",
+            "deep-10", "deep-100", "deep-500",
+            "methods-10", "methods-100", "methods-1000",
+            "straight-100", "straight-1000", "straight-5000",
+    })
+    public String program;
+
+    private String source;
+    private List<? extends Token> tokens;
+    private ParseTree parseTree;
+    private ParseTreeProperty<DataType> types;
+    private ParseTreeProperty<Symbol> symbols;
+    private ParseTreeProperty<Object> constants;
+    private JasminBytecode generatedCode;
+    private JasminBytecode jasminBytecode;
+
+    @Setup
+    public void prepare() throws IOException, AssembleException {
+        source = loadProgram(program);
+
+        Compiler compiler = new Compiler();
+        CommonTokenStream tokenStream = compiler.runLexer(CharStreams.fromString(source));
+        tokenStream.fill();
+        tokens = tokenStream.getTokens();
+
+        parseTree = compiler.runParser(new CommonTokenStream(new ListTokenSource(tokens)));
+
+        types = new ParseTreeProperty<>();
+        symbols = new ParseTreeProperty<>();
+        new Checker(types, symbols).visit(parseTree);
+
+        constants = new ParseTreeProperty<>();
+        new ConstantFolder(constants).visit(parseTree);
+
+        generatedCode = generate();
+
+        // The assembler needs a complete class, including the header the Compiler adds
+        jasminBytecode = new Compiler().compileString(source, "main");
+    }
+
+    /**
+     * Turns a @Param value into source code: either a path to a source file, or the kind and size
+     * of a synthetic program, e.g. "deep-100".
+     */
+    static String loadProgram(String program) throws IOException {
+        if (program.endsWith(BatchCompiler.SOURCE_EXTENSION)) {
+            return Files.readString(Paths.get(program));
+        }
+
+        String[] kindAndSize = program.split("-");
+        int size = Integer.parseInt(kindAndSize[1]);
+        switch (kindAndSize[0]) {
+            case "deep":
+                return ProgramGenerator.deepExpression(size);
+            case "methods":
+                return ProgramGenerator.manyMethods(size);
+            case "straight":
+                return ProgramGenerator.straightLine(size);
+            case "arithmetic":
+                return ProgramGenerator.arithmeticLoop(size);
+            case "array":
+                return ProgramGenerator.arraySum(size);
+            case "scalar":
+                return ProgramGenerator.scalarSum(size);
+            case "print":
+                return ProgramGenerator.printLoop(size);
+            case "recursion":
+                return ProgramGenerator.tailRecursion(size);
+            case "loop":
+                return ProgramGenerator.sumLoop(size);
+            case "fib":
+                return ProgramGenerator.fibonacci(size, false);
+            case "stashedfib":
+                return ProgramGenerator.fibonacci(size, true);
+            default:
+                throw new IllegalArgumentException("Unknown program: " + program);
+        }
+    }
+
+    private JasminBytecode generate() {
+        JasminBytecode code = new JasminBytecode("main");
+        new CodeGenerator(code, types, symbols, constants).visit(parseTree);
+        return code;
+    }
+
+    @Benchmark
+    public CommonTokenStream lexer() {
+        CommonTokenStream tokenStream = new Compiler().runLexer(CharStreams.fromString(source));
+        tokenStream.fill();
+        return tokenStream;
+    }
+
+    @Benchmark
+    public ParseTree parser() {
+        return new Compiler().runParser(new CommonTokenStream(new ListTokenSource(tokens)));
+    }
+
+    @Benchmark
+    public ParseTreeProperty<DataType> checker() {
+        ParseTreeProperty<DataType> checkedTypes = new ParseTreeProperty<>();
+        new Checker(checkedTypes, new ParseTreeProperty<>()).visit(parseTree);
+        return checkedTypes;
+    }
+
+    @Benchmark
+    public ParseTreeProperty<Object> constantFolder() {
+        ParseTreeProperty<Object> foldedConstants = new ParseTreeProperty<>();
+        new ConstantFolder(foldedConstants).visit(parseTree);
+        return foldedConstants;
+    }
+
+    @Benchmark
+    public LoopInvariants loopInvariants() {
+        LoopInvariants loopInvariants = new LoopInvariants(types, symbols, constants);
+        loopInvariants.visit(parseTree);
+        return loopInvariants;
+    }
+
+    @Benchmark
+    public JasminBytecode codeGenerator() {
+        return generate();
+    }
+
+    @Benchmark
+    public JasminBytecode optimizer() {
+        return new PeepholeOptimizer().optimize(generatedCode);
+    }
+
+    @Benchmark
+    public AssembledClass assembler() throws IOException, AssembleException {
+        return AssembledClass.assemble(jasminBytecode);
+    }
+
+    @Benchmark
+    public AssembledClass classFileWriter() throws AssembleException {
+        return ClassFileWriter.assemble(jasminBytecode);
+    }
+
+    @Benchmark
+    public AssembledClass endToEnd() throws IOException, AssembleException {
+        return AssembledClass.assemble(new Compiler().compileString(source, "main"));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CompilerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
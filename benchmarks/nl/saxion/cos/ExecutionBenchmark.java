@@ -0,0 +1,112 @@
+package nl.saxion.cos;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares loading a program for every run with loading it once and running it many times through
+ * LoadedProgram. Run with -t to see how runs scale over threads.
+ *
+ * A program can end with +option to compile it with that option, see compilerFor(). Next to each
+ * other, the programs compare what the option costs or gains:
+ * <ul>
+ *     <li>arithmetic heavy programs with and without optimizations, for the ArithmeticSimplifier;</li>
+ *     <li>filling and summing values in an array with fer loops, and the same with a variable for
+ *     every value;</li>
+ *     <li>saying 20000 lines with every say a System.out.println, and with buffered output;</li>
+ *     <li>a sum computed by an objective that calls itself in tail position, and the same sum in a
+ *     meantime loop;</li>
+ *     <li>a Fibonacci number computed by a recursive objective, and by the same objective stashed.</li>
+ * </ul>
+ */
+@State(org.openjdk.jmh.annotations.Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutionBenchmark {
+
+    @Param({
+            "testFiles/ForLoop/forloops.pc",
+            "testFiles/MethodCreation/Methods.pc",
+            "straight-100",
+            "arithmetic-1000", "arithmetic-1000+unoptimized",
+            "arithmetic-100000", "arithmetic-100000+unoptimized",
+            "straight-1000", "straight-1000+unoptimized",
+            "array-64", "scalar-64",
+            "array-512", "scalar-512",
+            "print-20000", "print-20000+buffered",
+            "recursion-1000", "loop-1000",
+            "recursion-99999", "loop-99999",
+            "fib-20", "stashedfib-20",
+            "fib-25", "stashedfib-25",
+    })
+    public String program;
+
+    private AssembledClass assembledClass;
+    private LoadedProgram loadedProgram;
+
+    @Setup
+    public void prepare() throws Exception {
+        String[] programAndOption = program.split("\\+");
+        Compiler compiler = compilerFor(programAndOption.length > 1 ? programAndOption[1] : "");
+        String source = CompilerBenchmark.loadProgram(programAndOption[0]);
+        assembledClass = compiler.assemble(compiler.compileString(source, "main"));
+        loadedProgram = LoadedProgram.load(assembledClass);
+    }
+
+    /**
+     * A stashed objective remembers what it gave for as long as its class is loaded, so after the
+     * first run, runLoaded would only look the values up. Programs with stashed objectives are
+     * loaded again before every run, so every run starts with an empty cache.
+     */
+    @Setup(Level.Invocation)
+    public void emptyCaches() {
+        if (program.startsWith("stashed")) {
+            loadedProgram = LoadedProgram.load(assembledClass);
+        }
+    }
+
+    /**
+     * @param option  Empty for the default options, "unoptimized" or "buffered".
+     */
+    private static Compiler compilerFor(String option) {
+        Compiler compiler = new Compiler();
+        switch (option) {
+            case "":
+                break;
+            case "unoptimized":
+                compiler.setOptimize(false);
+                break;
+            case "buffered":
+                compiler.setBufferedOutput(true);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + option);
+        }
+        return compiler;
+    }
+
+    @Benchmark
+    public String loadAndRun() {
+        return LoadedProgram.load(assembledClass).run();
+    }
+
+    @Benchmark
+    public String runLoaded() {
+        return loadedProgram.run();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ExecutionBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
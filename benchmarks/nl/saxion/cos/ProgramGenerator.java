@@ -0,0 +1,201 @@
+package nl.saxion.cos;
+
+/**
+ * Generates synthetic Pirate Calligraphy programs of a given size, used to see how the compiler
+ * scales with the shape of its input.
+ */
+public class ProgramGenerator {
+
+    /**
+     * A single assignment with an expression nested the given number of parentheses deep:
+     * <pre>number a ~ 1 + <1 + <1 + ...>>$</pre>
+     */
+    public static String deepExpression(int depth) {
+        StringBuilder expression = new StringBuilder("1");
+        for (int i = 0; i < depth; i++) {
+            expression.insert(0, "1 + <").append('>');
+        }
+        return "SAIL\n"
+                + "    number a ~ " + expression + "$\n"
+                + "    say<a>$\n"
+                + "RUM\n";
+    }
+
+    /**
+     * The given number of small methods, each called once from the main body.
+     */
+    public static String manyMethods(int count) {
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            program.append("quite number objective method").append(i).append("<number a> [\n")
+                    .append("    number b ~ a * 2$\n")
+                    .append("    give b + 1$\n")
+                    .append("]\n\n");
+        }
+        program.append("SAIL\n");
+        for (int i = 0; i < count; i++) {
+            program.append("    say<method").append(i).append("<1>>$\n");
+        }
+        return program.append("RUM\n").toString();
+    }
+
+    /**
+     * The most statements straightLine() generates. Unoptimized, that is about 59000 bytes of code,
+     * just below the 65535 bytes a method may have.
+     */
+    public static final int MAX_STRAIGHT_LINE_STATEMENTS = 8000;
+
+    /**
+     * A main body of the given number of straight-line statements, without any branches.
+     */
+    public static String straightLine(int statements) {
+        if (statements > MAX_STRAIGHT_LINE_STATEMENTS) {
+            throw new IllegalArgumentException("At most " + MAX_STRAIGHT_LINE_STATEMENTS
+                    + " statements fit in a method, not " + statements);
+        }
+        StringBuilder program = new StringBuilder("SAIL\n    number a ~ 1$\n");
+        for (int i = 0; i < statements; i++) {
+            switch (i % 3) {
+                case 0:
+                    program.append("    a ~ a + 2$\n");
+                    break;
+                case 1:
+                    program.append("    a ~ a * 3 - 4$\n");
+                    break;
+                default:
+                    program.append("    say<a>$\n");
+                    break;
+            }
+        }
+        return program.append("RUM\n").toString();
+    }
+
+    /**
+     * A loop that runs the given number of times over int arithmetic with constant operands, the
+     * kind of code the ArithmeticSimplifier rewrites.
+     */
+    public static String arithmeticLoop(int iterations) {
+        return "SAIL\n"
+                + "    number n ~ " + intExpression(iterations) + "$\n"
+                + "    number x ~ 3$\n"
+                + "    number total ~ 0$\n"
+                + "    fer<number i ~ 0$ i below n$ i++> [\n"
+                + "        x ~ x * 8 + i * 1 - 0$\n"
+                + "        x ~ x / 1 - 4 * x$\n"
+                + "        total ~ total + x * 2$\n"
+                + "        total ~ total + 1$\n"
+                + "    ]\n"
+                + "    say<total>$\n"
+                + "RUM\n";
+    }
+
+    /**
+     * An expression with the given value. The lexer can't read every number, 100 for example, so
+     * the value is built from its digits; the constant folder turns it back into one number.
+     */
+    private static String intExpression(int value) {
+        String expression = "0";
+        for (char digit : Integer.toString(value).toCharArray()) {
+            expression = "<" + expression + " * 10 + " + digit + ">";
+        }
+        return expression;
+    }
+
+    /**
+     * Fills an array of the given size and sums it, a number of times over:
+     * <pre>fer<number i ~ 0$ i below values.length$ i++> [ total ~ total + values[i]$ ]</pre>
+     */
+    public static String arraySum(int size) {
+        return "SAIL\n"
+                + "    number[] values ~ number[" + intExpression(size) + "]$\n"
+                + "    number total ~ 0$\n"
+                + "    fer<number round ~ 0$ round below " + ROUNDS + "$ round++> [\n"
+                + "        fer<number i ~ 0$ i below values.length$ i++> [ values[i] ~ i * round$ ]\n"
+                + "        fer<number i ~ 0$ i below values.length$ i++> [ total ~ total + values[i]$ ]\n"
+                + "    ]\n"
+                + "    say<total>$\n"
+                + "RUM\n";
+    }
+
+    /**
+     * The same work as arraySum, written the only way it could be without arrays: a variable for
+     * every value.
+     */
+    public static String scalarSum(int size) {
+        StringBuilder program = new StringBuilder("SAIL\n");
+        for (int i = 0; i < size; i++) {
+            program.append("    number v").append(i).append(" ~ 0$\n");
+        }
+        program.append("    number total ~ 0$\n")
+                .append("    fer<number round ~ 0$ round below " + ROUNDS + "$ round++> [\n");
+        for (int i = 0; i < size; i++) {
+            program.append("        v").append(i).append(" ~ ").append(intExpression(i)).append(" * round$\n");
+        }
+        for (int i = 0; i < size; i++) {
+            program.append("        total ~ total + v").append(i).append("$\n");
+        }
+        return program.append("    ]\n")
+                .append("    say<total>$\n")
+                .append("RUM\n").toString();
+    }
+
+    /**
+     * A loop that says the given number of lines, alternating ints and doubles.
+     */
+    public static String printLoop(int lines) {
+        return "SAIL\n"
+                + "    duplicate d ~ 0.5$\n"
+                + "    fer<number i ~ 0$ i below " + intExpression(lines / 2) + "$ i++> [\n"
+                + "        say<i>$\n"
+                + "        d ~ d + 1.0$\n"
+                + "        say<d>$\n"
+                + "    ]\n"
+                + "RUM\n";
+    }
+
+    /**
+     * Sums the numbers up to the given one with an objective that calls itself as the last thing it
+     * does, which the CodeGenerator turns into a jump.
+     */
+    public static String tailRecursion(int count) {
+        return "quite nothing objective sum<number n, number total> [\n"
+                + "    assuming<n above 0> [ sum<n - 1, total + n>$ ] extra [ say<total>$ ]\n"
+                + "]\n\n"
+                + "SAIL\n"
+                + "    sum<" + intExpression(count) + ", 0>$\n"
+                + "RUM\n";
+    }
+
+    /**
+     * The same sum as tailRecursion, written as a meantime loop.
+     */
+    public static String sumLoop(int count) {
+        return "SAIL\n"
+                + "    number n ~ " + intExpression(count) + "$\n"
+                + "    number total ~ 0$\n"
+                + "    meantime<n above 0> [\n"
+                + "        total ~ total + n$\n"
+                + "        n--$\n"
+                + "    ]\n"
+                + "    say<total>$\n"
+                + "RUM\n";
+    }
+
+    /**
+     * Computes the given Fibonacci number with an objective that calls itself twice, so without
+     * stashed every smaller number is computed over and over.
+     */
+    public static String fibonacci(int n, boolean stashed) {
+        return "quite " + (stashed ? "stashed " : "") + "number objective fib<number n> [\n"
+                + "    number r ~ n$\n"
+                + "    assuming<n above 1> [ r ~ fib<n - 1> + fib<n - 2>$ ]\n"
+                + "    give r$\n"
+                + "]\n\n"
+                + "SAIL\n"
+                + "    say<fib<" + intExpression(n) + ">>$\n"
+                + "RUM\n";
+    }
+
+    /** How often arraySum and scalarSum go over their values. */
+    private static final int ROUNDS = 64;
+}
@@ -17,8 +17,10 @@ statement
     | whileStatement
     | forStatement
     | variableDeclaration
+    | arrayDeclaration
     | printStatement
     | variableReDeclaration
+    | arrayElementReDeclaration
     | expression
     ;
 
@@ -41,15 +43,17 @@ forStatement:
 
 variableDeclaration: (INT | DOUBLE | STRING| BOOLEAN) ID IS expression SEMICOLON | (INT | DOUBLE | STRING| BOOLEAN) ID SEMICOLON;
 variableReDeclaration: ID IS expression SEMICOLON;
+arrayDeclaration: elementType=(INT | DOUBLE) BRACKET_OPEN BRACKET_CLOSE ID IS expression SEMICOLON;
+arrayElementReDeclaration: ID BRACKET_OPEN index=expression BRACKET_CLOSE IS value=expression SEMICOLON;
 printStatement: PRINT PAREN_OPEN expression PAREN_CLOSE SEMICOLON;
 
 methodDeclarationStatement
-    : PRIVACY returntype=(INT|DOUBLE|STRING|VOID) METHOD methodName=ID
+    : PRIVACY memo=MEMO? returntype=(INT|DOUBLE|STRING|VOID) METHOD methodName=ID
       PAREN_OPEN parameters? PAREN_CLOSE
       BRACKET_OPEN statement* returnStatement? BRACKET_CLOSE;
 
 parameters: parameter (',' parameter)*;
-parameter: (type=(INT|DOUBLE|STRING|BOOLEAN) ID | (expression));
+parameter: (type=(INT|DOUBLE|STRING|BOOLEAN) (array=BRACKET_OPEN BRACKET_CLOSE)? ID | (expression));
 
 
 expression
@@ -65,6 +69,9 @@ expression
     | left=expression op=(OR | AND) right=expression #OrAnd
     | DOUBLE_VALUE #double
     | INT_VALUE #int
+    | elementType=(INT | DOUBLE) BRACKET_OPEN size=expression BRACKET_CLOSE #newArray
+    | ID BRACKET_OPEN index=expression BRACKET_CLOSE #arrayElement
+    | ID DOT LENGTH #arrayLength
     | ID #variableName
     | ID_HOOKS #id
     | ID PAREN_OPEN parameters? PAREN_CLOSE SEMICOLON? #methodCall
@@ -106,6 +113,8 @@ ELSE: 'extra';
 WHILE: 'meantime';
 PRINT: 'say';
 FOR: 'fer';
+LENGTH: 'length';
+MEMO: 'stashed';
 ID: [A-Za-z]+ [0-9_]*;
 ID_HOOKS:  '"' ([A-Za-z0-9_!?,`' ])* '"';
 IS: '~';
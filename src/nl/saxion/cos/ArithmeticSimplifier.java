@@ -0,0 +1,137 @@
+package nl.saxion.cos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces arithmetic with a constant operand by cheaper instructions that give exactly the same
+ * result:
+ * <ul>
+ *     <li>x * 1, x / 1, x + 0 and x - 0 are just x, x * -1 and x / -1 are -x;</li>
+ *     <li>x * 0 and x % 1 are 0, but x is still computed for its side effects;</li>
+ *     <li>x * 2^k is x << k, which wraps around on overflow exactly like imul;</li>
+ *     <li>a ~ a + c and a ~ a - c become a single iinc.</li>
+ * </ul>
+ * The CodeGenerator puts the constant operand of + and * last, so these patterns also cover 2 * x.
+ *
+ * Doubles are only simplified where IEEE 754 gives x itself: x * 1.0, x / 1.0 and x - 0.0. Rules
+ * like x + 0.0 (which turns -0.0 into 0.0) or x * 0.0 (which isn't 0.0 for NaN or infinity) are not
+ * applied.
+ */
+public class ArithmeticSimplifier {
+    private final List<String> report = new ArrayList<>();
+    private int simplifiedOperations = 0;
+
+    /**
+     * Simplifies the arithmetic in the bodies of the methods.
+     */
+    void simplify(JasminMethods code) {
+        for (JasminMethods.Method method : code.getMethods()) {
+            int simplified = simplifyMethod(method.getBody());
+            if (simplified > 0) {
+                simplifiedOperations += simplified;
+                report.add("arithmetic " + method.getName() + ": simplified " + simplified + " operations");
+            }
+        }
+    }
+
+    /**
+     * @return  For every method with arithmetic that was simplified, how many operations.
+     */
+    public List<String> getReport() {
+        return report;
+    }
+
+    public int getSimplifiedOperations() {
+        return simplifiedOperations;
+    }
+
+    /**
+     * @return  The number of operations that were simplified.
+     */
+    private static int simplifyMethod(List<String> code) {
+        int simplified = 0;
+        for (int i = 0; i + 1 < code.size(); i++) {
+            String constant = code.get(i);
+            String operation = code.get(i + 1);
+            if (!Instructions.isInstruction(constant) || !Instructions.isInstruction(operation)) {
+                continue;
+            }
+
+            List<String> replacement = null;
+            int start = i;
+            int end = i + 2;
+
+            Integer value = Instructions.intConstant(constant);
+            if (value != null) {
+                replacement = simplifyInt(value, Instructions.mnemonic(operation));
+
+                // iload n / c / iadd / istore n
+                if (start > 0 && end < code.size()
+                        && (operation.equals("iadd") || operation.equals("isub"))
+                        && Instructions.mnemonic(code.get(start - 1)).startsWith("iload")
+                        && Instructions.mnemonic(code.get(end)).startsWith("istore")) {
+                    int variable = Instructions.localVariable(code.get(start - 1));
+                    long increment = operation.equals("iadd") ? (long) value : -(long) value;
+                    if (variable == Instructions.localVariable(code.get(end))
+                            && increment >= Short.MIN_VALUE && increment <= Short.MAX_VALUE) {
+                        replacement = List.of("iinc " + variable + " " + increment);
+                        start--;
+                        end++;
+                    }
+                }
+            } else {
+                replacement = simplifyDouble(constant, Instructions.mnemonic(operation));
+            }
+
+            if (replacement != null) {
+                code.subList(start, end).clear();
+                code.addAll(start, replacement);
+                simplified++;
+                // The replacement can be part of a new pattern with the instruction before it
+                i = Math.max(-1, start - 2);
+            }
+        }
+        return simplified;
+    }
+
+    /**
+     * @return  What replaces pushing the value and doing the operation, or null if it can't be
+     *          simplified.
+     */
+    private static List<String> simplifyInt(int value, String operation) {
+        switch (operation) {
+            case "iadd":
+            case "isub":
+                return value == 0 ? List.of() : null;
+            case "imul":
+                if (value == 1) {
+                    return List.of();
+                } else if (value == 0) {
+                    return List.of("pop", "iconst_0");
+                } else if (value == -1) {
+                    return List.of("ineg");
+                } else if (Integer.bitCount(value) == 1) {
+                    // Also for Integer.MIN_VALUE, which is 1 << 31
+                    return List.of(Instructions.pushInt(Integer.numberOfTrailingZeros(value)), "ishl");
+                }
+                return null;
+            case "idiv":
+                // Integer.MIN_VALUE / -1 overflows to Integer.MIN_VALUE, just like ineg does
+                return value == 1 ? List.of() : value == -1 ? List.of("ineg") : null;
+            case "irem":
+                return value == 1 || value == -1 ? List.of("pop", "iconst_0") : null;
+            default:
+                return null;
+        }
+    }
+
+    private static List<String> simplifyDouble(String constant, String operation) {
+        boolean one = constant.equals("dconst_1");
+        boolean zero = constant.equals("dconst_0");
+        if ((one && (operation.equals("dmul") || operation.equals("ddiv"))) || (zero && operation.equals("dsub"))) {
+            return List.of();
+        }
+        return null;
+    }
+}
@@ -1,9 +1,13 @@
 package nl.saxion.cos;
 
 /**
- * Thrown when the generated Jasmin code is not accepted by Jasmin.
+ * Thrown when the generated Jasmin code is not accepted by Jasmin or ClassFileWriter.
  */
 public class AssembleException extends Exception {
+	public AssembleException( String msg ) {
+		super(msg);
+	}
+
 	public AssembleException( String msg, Exception innerException ) {
 			super(msg, innerException);
 	}
@@ -20,6 +20,16 @@ public class AssembledClass {
 		this.className = className;
 	}
 
+	/**
+	 * Wraps class data that was assembled before, e.g. by an earlier compilation that was cached.
+	 *
+	 * @param classBytes  The class file data.
+	 * @param className   Name of the class.
+	 */
+	static AssembledClass fromClassBytes( byte[] classBytes, String className ) {
+		return new AssembledClass(classBytes, className);
+	}
+
 	/**
 	 * Assembles Jasmin code into a (hopefully valid) JVM-compatible class file.
 	 *
@@ -28,18 +38,50 @@ public class AssembledClass {
 	 */
 	public static AssembledClass assemble( JasminBytecode jasminBytecode )
 			throws IOException, AssembleException {
+		return assemble(jasminBytecode, null);
+	}
+
+	/**
+	 * Assembles Jasmin code and records the time it took in the metrics of its compilation.
+	 *
+	 * @param metrics  The metrics of the compilation, see Compiler.getMetrics(). May be null.
+	 * @throws IOException if file could not be written
+	 * @throws AssembleException if Jasmin code was not valid
+	 */
+	public static AssembledClass assemble( JasminBytecode jasminBytecode, CompileMetrics metrics )
+			throws IOException, AssembleException {
+		return assemble(jasminBytecode, metrics, Backend.JASMIN);
+	}
+
+	/**
+	 * Turns the generated code into a class file with the given backend and records the time it
+	 * took in the metrics of its compilation.
+	 *
+	 * @param metrics  The metrics of the compilation, see Compiler.getMetrics(). May be null.
+	 * @param backend  Jasmin, or ClassFileWriter to skip Jasmin.
+	 * @throws IOException if file could not be written
+	 * @throws AssembleException if Jasmin code was not valid
+	 */
+	public static AssembledClass assemble( JasminBytecode jasminBytecode, CompileMetrics metrics, Backend backend )
+			throws IOException, AssembleException {
+		CompileMetrics.Phase phase = metrics == null ? null : metrics.begin(CompileMetrics.ASSEMBLER);
+		AssembledClass assembledClass = backend == Backend.DIRECT
+				? ClassFileWriter.assemble(jasminBytecode)
+				: assembleJasmin(jasminBytecode);
+		if( phase != null ) {
+			phase.count("classBytes", assembledClass.getClassBytes().length);
+			phase.end();
+		}
+		return assembledClass;
+	}
+
+	private static AssembledClass assembleJasmin( JasminBytecode jasminBytecode )
+			throws IOException, AssembleException {
 		try {
 			ClassFile classFile = new ClassFile();
 
-			// Merge all Jasmin lines into a single string
-			StringBuilder combinedCode = new StringBuilder();
-			for( String line : jasminBytecode.getLines() ) {
-				combinedCode.append(line);
-				combinedCode.append('\n');
-			}
-
-			// Read in the jasmin code
-			BufferedReader input = new BufferedReader(new StringReader(combinedCode.toString()));
+			// Read in the jasmin code, straight from the buffer it was generated into
+			Reader input = jasminBytecode.openReader();
 			classFile.readJasmin(input, jasminBytecode.getClassName() + ".j", true);
 			input.close();
 
@@ -0,0 +1,13 @@
+package nl.saxion.cos;
+
+/**
+ * The ways generated code can be turned into a class file. Both take the same generated code, so
+ * a program behaves the same whichever backend is used.
+ */
+public enum Backend {
+	/** Assemble the Jasmin text with the Jasmin assembler. */
+	JASMIN,
+
+	/** Encode the instructions straight into a class file with ClassFileWriter, skipping Jasmin. */
+	DIRECT
+}
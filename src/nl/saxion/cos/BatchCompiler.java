@@ -0,0 +1,246 @@
+package nl.saxion.cos;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles many source files at once on a work-stealing pool. Every file gets its own Compiler
+ * instance, so no error counts, types or symbols are shared between compilations.
+ */
+public class BatchCompiler {
+	/** File extension of Pirate Calligraphy source files. */
+	public static final String SOURCE_EXTENSION = ".pc";
+
+	private final int parallelism;
+
+	/** Cache of earlier compilations, or null to always compile. */
+	private CompileCache cache;
+
+	/**
+	 * Creates a batch compiler that uses one worker per available core.
+	 */
+	public BatchCompiler() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism  The number of worker threads to compile with.
+	 */
+	public BatchCompiler( int parallelism ) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Reuse the output of earlier compilations of unchanged sources.
+	 *
+	 * @param cache  The cache to use, or null to always compile.
+	 */
+	public void setCache( CompileCache cache ) {
+		this.cache = cache;
+	}
+
+	public CompileCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * The outcome of compiling a single source file.
+	 */
+	public static class Result {
+		private final Path source;
+		private final long sourceBytes;
+		private final long nanos;
+		private final List<String> diagnostics;
+
+		Result( Path source, long sourceBytes, long nanos, List<String> diagnostics ) {
+			this.source = source;
+			this.sourceBytes = sourceBytes;
+			this.nanos = nanos;
+			this.diagnostics = diagnostics;
+		}
+
+		public Path getSource() {
+			return source;
+		}
+
+		public long getSourceBytes() {
+			return sourceBytes;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return  The errors that made this compilation fail, empty when it succeeded.
+		 */
+		public List<String> getDiagnostics() {
+			return diagnostics;
+		}
+
+		public boolean isSuccess() {
+			return diagnostics.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-7s %s (%.1f ms)", isSuccess() ? "OK" : "FAILED", source, nanos / 1e6)
+					+ (isSuccess() ? "" : "\n        " + String.join("\n        ", diagnostics));
+		}
+	}
+
+	/**
+	 * Finds all source files in the given directories and files. Directories are searched
+	 * recursively, plain files are used as is.
+	 *
+	 * @param paths  Directories and/or source files.
+	 * @return       All source files, sorted by path.
+	 * @throws IOException if a directory could not be read
+	 */
+	public static List<Path> collectSources( List<Path> paths ) throws IOException {
+		List<Path> sources = new ArrayList<>();
+		for( Path path : paths ) {
+			if( Files.isDirectory(path) ) {
+				try( Stream<Path> walk = Files.walk(path) ) {
+					sources.addAll(walk
+							.filter(Files::isRegularFile)
+							.filter(p -> p.getFileName().toString().endsWith(SOURCE_EXTENSION))
+							.sorted()
+							.collect(Collectors.toList()));
+				}
+			} else {
+				sources.add(path);
+			}
+		}
+		return sources;
+	}
+
+	/**
+	 * Compiles all given source files in parallel and writes the .j and .class files next to
+	 * each source.
+	 *
+	 * @param sources  The source files to compile.
+	 * @return         A result per source file, in the same order as the sources.
+	 */
+	public List<Result> compileAll( List<Path> sources ) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+			for( Path source : sources ) {
+				tasks.add(pool.submit(() -> compileOne(source)));
+			}
+
+			List<Result> results = new ArrayList<>();
+			for( ForkJoinTask<Result> task : tasks ) {
+				results.add(task.get());
+			}
+			return results;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Batch compilation was interrupted", e);
+		} catch( ExecutionException e ) {
+			throw new IllegalStateException("Batch compilation failed", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Compiles a single source file with a fresh Compiler.
+	 */
+	private Result compileOne( Path source ) {
+		long start = System.nanoTime();
+		List<String> diagnostics = new ArrayList<>();
+		long sourceBytes = 0;
+		try {
+			Compiler compiler = new Compiler();
+			String className = Compiler.classNameFor(source);
+
+			if( cache != null ) {
+				byte[] sourceCode = Files.readAllBytes(source);
+				sourceBytes = sourceCode.length;
+
+				CompileCache.Entry entry = cache.compile(compiler, sourceCode, className);
+				if( entry != null ) {
+					entry.getJasminBytecode().writeJasminToFile(source.resolveSibling(className + ".j").toString());
+					entry.getAssembledClass().writeClassToFile(source.resolveSibling(className + ".class").toString());
+				} else {
+					diagnostics.addAll(compiler.getDiagnostics());
+				}
+			} else {
+				sourceBytes = Files.size(source);
+
+				JasminBytecode jasminBytecode = compiler.compileFile(source.toString(), className);
+				if( jasminBytecode != null )
+					Compiler.writeOutput(source, jasminBytecode, compiler);
+				else
+					diagnostics.addAll(compiler.getDiagnostics());
+			}
+		} catch( IOException | AssembleException | RuntimeException | StackOverflowError e ) {
+			// A source nested too deep overflows the recursive visitors; that only fails this file
+			diagnostics.add(e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+		return new Result(source, sourceBytes, System.nanoTime() - start, diagnostics);
+	}
+
+	/**
+	 * Prints a line per compiled file followed by the totals and throughput of the whole batch.
+	 *
+	 * @param results      The results returned by compileAll().
+	 * @param elapsedNanos The wall clock time the whole batch took.
+	 */
+	public static void printReport( List<Result> results, long elapsedNanos ) {
+		long failed = 0;
+		long totalBytes = 0;
+		for( Result result : results ) {
+			System.out.println(result);
+			if( !result.isSuccess() )
+				failed++;
+			totalBytes += result.getSourceBytes();
+		}
+
+		double seconds = elapsedNanos / 1e9;
+		System.out.printf("%d files, %d failed, %.3f s%n", results.size(), failed, seconds);
+		System.out.printf("Throughput: %.1f files/sec, %.3f MB/sec%n",
+				results.size() / seconds, totalBytes / (1024.0 * 1024.0) / seconds);
+	}
+
+	/**
+	 * Batch entry point, also reachable through "java Compiler --batch".
+	 *
+	 * @param args  Optionally "--cache" and a cache directory, followed by directories and/or
+	 *              source files to compile.
+	 */
+	public static void main( String[] args ) throws IOException {
+		BatchCompiler batchCompiler = new BatchCompiler();
+		int first = 0;
+		if( args.length >= 2 && args[0].equals("--cache") ) {
+			batchCompiler.setCache(new CompileCache(Paths.get(args[1]), CompileCache.DEFAULT_MAX_BYTES));
+			first = 2;
+		}
+		if( first == args.length ) {
+			System.err.println("Usage: java BatchCompiler [--cache <directory>] <directory or source>...");
+			return;
+		}
+
+		List<Path> paths = new ArrayList<>();
+		for( int i = first; i < args.length; i++ )
+			paths.add(Paths.get(args[i]));
+		List<Path> sources = collectSources(paths);
+
+		long start = System.nanoTime();
+		List<Result> results = batchCompiler.compileAll(sources);
+		printReport(results, System.nanoTime() - start);
+		if( batchCompiler.getCache() != null )
+			System.out.println(batchCompiler.getCache().getStatistics());
+	}
+}
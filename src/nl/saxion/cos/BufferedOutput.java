@@ -0,0 +1,149 @@
+package nl.saxion.cos;
+
+/**
+ * The code for the buffered output mode of generated programs. Normally every say is a
+ * System.out.println, which locks the stream and may flush it for every line. With buffered
+ * output, say appends the value to a StringBuilder instead, without boxing it, and the text only
+ * goes to System.out once 8K characters have been collected, when main ends and when main is left
+ * by an exception. A thread only has a buffer while it runs main, so an objective that is called
+ * from outside main says its values with System.out.println.
+ *
+ * The runtime is generated into the program class itself, so the class still runs on its own:
+ * <ul>
+ *     <li>a static field with a ThreadLocal that holds the buffer of the current run, so a class
+ *     that is run from many threads at the same time, like by LoadedProgram, keeps the output of
+ *     every run apart;</li>
+ *     <li>say$ methods for ints, doubles and strings, and flush$. A $ can't be part of a name in
+ *     the source code, so these never clash with an objective.</li>
+ * </ul>
+ */
+final class BufferedOutput {
+    private static final String FIELD = "main/output$ Ljava/lang/ThreadLocal;";
+    private static final String FIELD_DECLARATION = "output$ Ljava/lang/ThreadLocal;";
+    private static final String BUFFER = "java/lang/StringBuilder";
+    private static final int FLUSH_SIZE = 8192;
+
+    private BufferedOutput() {
+    }
+
+    /**
+     * Adds the field of the runtime. It has to come before any method.
+     */
+    static void addField(JasminBytecode code) {
+        code.add(".field private static " + FIELD_DECLARATION);
+    }
+
+    /**
+     * Adds the code that creates the ThreadLocal to the static initializer.
+     */
+    static void addInitialization(JasminBytecode code) {
+        code.add("new java/lang/ThreadLocal");
+        code.add("dup");
+        code.add("invokespecial java/lang/ThreadLocal/<init>()V");
+        code.add("putstatic " + FIELD);
+    }
+
+    /**
+     * Adds the methods of the runtime to the class.
+     */
+    static void addMethods(JasminBytecode code) {
+        addSay(code, "I", "iload 0");
+        addSay(code, "D", "dload 0");
+        addSay(code, "Ljava/lang/String;", "aload 0");
+
+        code.add(".method private static flush$()V");
+        loadBuffer(code);
+        code.add("astore 0");
+        code.add("getstatic java/lang/System/out Ljava/io/PrintStream;");
+        code.add("aload 0");
+        code.add("invokevirtual java/io/PrintStream/print(Ljava/lang/Object;)V");
+        code.add("aload 0");
+        code.add("iconst_0");
+        code.add("invokevirtual " + BUFFER + "/setLength(I)V");
+        code.add("getstatic java/lang/System/out Ljava/io/PrintStream;");
+        code.add("invokevirtual java/io/PrintStream/flush()V");
+        code.add("return");
+        code.add(".end method");
+        code.add("");
+    }
+
+    private static void addSay(JasminBytecode code, String descriptor, String load) {
+        code.add(".method private static say$(" + descriptor + ")V");
+        loadBuffer(code);
+        code.add("dup");
+        code.add("ifnonnull Buffered");
+        code.add("pop");
+        code.add("getstatic java/lang/System/out Ljava/io/PrintStream;");
+        code.add(load);
+        code.add("invokevirtual java/io/PrintStream/println(" + descriptor + ")V");
+        code.add("return");
+        code.add("Buffered:");
+        code.add(load);
+        code.add("invokevirtual " + BUFFER + "/append(" + descriptor + ")L" + BUFFER + ";");
+        code.add("invokestatic java/lang/System/lineSeparator()Ljava/lang/String;");
+        code.add("invokevirtual " + BUFFER + "/append(Ljava/lang/String;)L" + BUFFER + ";");
+        code.add("invokevirtual " + BUFFER + "/length()I");
+        code.add("sipush " + FLUSH_SIZE);
+        code.add("if_icmplt Done");
+        code.add("invokestatic main/flush$()V");
+        code.add("Done:");
+        code.add("return");
+        code.add(".end method");
+        code.add("");
+    }
+
+    private static void loadBuffer(JasminBytecode code) {
+        code.add("getstatic " + FIELD);
+        code.add("invokevirtual java/lang/ThreadLocal/get()Ljava/lang/Object;");
+        code.add("checkcast " + BUFFER);
+    }
+
+    private static void removeBuffer(JasminBytecode code) {
+        code.add("getstatic " + FIELD);
+        code.add("invokevirtual java/lang/ThreadLocal/remove()V");
+    }
+
+    /**
+     * @return  The instruction that prints the value of the given type on top of the stack.
+     */
+    static String say(DataType type) {
+        switch (type) {
+            case DOUBLE:
+                return "invokestatic main/say$(D)V";
+            case STRING:
+                return "invokestatic main/say$(Ljava/lang/String;)V";
+            default:
+                return "invokestatic main/say$(I)V";
+        }
+    }
+
+    /**
+     * Gives this run of main a new buffer. The code of main goes between the start and the end
+     * label.
+     */
+    static void beginMain(JasminBytecode code, String start) {
+        code.add(start + ":");
+        code.add("getstatic " + FIELD);
+        code.add("new " + BUFFER);
+        code.add("dup");
+        code.add("sipush " + FLUSH_SIZE);
+        code.add("invokespecial " + BUFFER + "/<init>(I)V");
+        code.add("invokevirtual java/lang/ThreadLocal/set(Ljava/lang/Object;)V");
+    }
+
+    /**
+     * Flushes the buffer when main returns, and when an exception leaves main before throwing it
+     * on. Then the thread no longer has a buffer, so what is said later isn't lost in it.
+     */
+    static void endMain(JasminBytecode code, String start, String end, String handler) {
+        code.add(end + ":");
+        code.add("invokestatic main/flush$()V");
+        removeBuffer(code);
+        code.add("return");
+        code.add(handler + ":");
+        code.add("invokestatic main/flush$()V");
+        removeBuffer(code);
+        code.add("athrow");
+        code.add(".catch java/lang/Throwable from " + start + " to " + end + " using " + handler);
+    }
+}
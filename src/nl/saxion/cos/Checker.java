@@ -4,12 +4,23 @@ import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeProperty;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
     private ParseTreeProperty<DataType> types;
     private ParseTreeProperty<Symbol> symbols;
 
     private Scope currentScope;
 
+    /** The objectives that say something, themselves or through an objective they call. */
+    private final Set<String> impureMethods = new HashSet<>();
+    /** The name of the objective that is being checked, null for main. */
+    private String currentMethod;
+    /** Where the current objective first says something, and why that is, or null if it doesn't. */
+    private Token impurity;
+    private String impurityReason;
+
     private DataType registerType(ParseTree node, DataType type) {
         types.put(node, type);
         return type;
@@ -191,6 +202,8 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
         types.put(ctx.ID(), returnType);
 
         currentScope = currentScope.openScope();
+        currentMethod = ctx.methodName.getText();
+        impurity = null;
 
         if (ctx.parameters() != null) {
             visit(ctx.parameters());
@@ -204,15 +217,56 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
             visit(ctx.returnStatement());
         }
 
+        if (impurity != null) {
+            impureMethods.add(currentMethod);
+        }
+        if (ctx.memo != null) {
+            checkStashed(ctx, returnType);
+        }
+
+        currentMethod = null;
         currentScope = currentScope.closeScope();
         return null;
     }
 
+    /**
+     * A stashed objective only runs for arguments it wasn't called with before, so it must give
+     * something, and do nothing besides: it can't say anything, not even through another objective.
+     * Its arguments are remembered, so they can't be arrays, which can change after the call.
+     */
+    private void checkStashed(Pirate_CalligraphyParser.MethodDeclarationStatementContext ctx, DataType returnType) {
+        String name = ctx.methodName.getText();
+        if (returnType == DataType.VOID) {
+            reportSemanticError(ctx.memo, "stashed objective " + name + " must give something");
+        }
+        if (impurity != null) {
+            reportSemanticError(impurity, "stashed objective " + name + " " + impurityReason);
+        }
+        if (ctx.parameters() != null) {
+            for (var parameter : ctx.parameters().parameter()) {
+                if (parameter.array != null || parameter.BOOLEAN() != null) {
+                    reportSemanticError(parameter.ID().getSymbol(), "stashed objective " + name
+                            + " can only take numbers, duplicates and ropes");
+                }
+            }
+        }
+    }
+
+    private void markImpure(Token where, String reason) {
+        if (currentMethod != null && impurity == null) {
+            impurity = where;
+            impurityReason = reason;
+        }
+    }
+
 
     @Override
     public DataType visitMethodCall(Pirate_CalligraphyParser.MethodCallContext ctx) {
         Symbol s = currentScope.lookupVariable(ctx.ID().getText());
         symbols.put(ctx, s);
+        if (impureMethods.contains(ctx.ID().getText())) {
+            markImpure(ctx.ID().getSymbol(), "can't call " + ctx.ID().getText() + ", which says something");
+        }
         if (ctx.parameters() != null) {
             visit(ctx.parameters());
         }
@@ -248,6 +302,9 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
         } else if (ctx.BOOLEAN() != null) {
             type = DataType.BOOLEAN;
         }
+        if (ctx.array != null) {
+            type = arrayOf(ctx.type);
+        }
 
         registerType(ctx, type);
         currentScope.declareVariable(ctx.ID().getText(), type);
@@ -307,6 +364,77 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
 
     }
 
+    @Override
+    public DataType visitArrayDeclaration(Pirate_CalligraphyParser.ArrayDeclarationContext ctx) {
+        DataType type = arrayOf(ctx.elementType);
+        if (visit(ctx.expression()) != type) {
+            throw new CompilerException("Array declaration needs to be the same type");
+        }
+
+        currentScope.declareVariable(ctx.ID().getText(), type);
+        registerSymbol(ctx, ctx.ID().getSymbol());
+        return null;
+    }
+
+    @Override
+    public DataType visitArrayElementReDeclaration(Pirate_CalligraphyParser.ArrayElementReDeclarationContext ctx) {
+        DataType element = elementOf(registerSymbol(ctx, ctx.ID().getSymbol()), ctx.ID().getSymbol());
+        if (visit(ctx.index) != DataType.INT) {
+            throw new CompilerException("An array index must be a number: " + ctx.index.getText());
+        }
+        if (visit(ctx.value) != element) {
+            throw new CompilerException("Array element ReDeclaration needs to be the same type");
+        }
+        registerType(ctx, element);
+        return null;
+    }
+
+    @Override
+    public DataType visitNewArray(Pirate_CalligraphyParser.NewArrayContext ctx) {
+        if (visit(ctx.size) != DataType.INT) {
+            throw new CompilerException("The size of an array must be a number: " + ctx.size.getText());
+        }
+        return registerType(ctx, arrayOf(ctx.elementType));
+    }
+
+    @Override
+    public DataType visitArrayElement(Pirate_CalligraphyParser.ArrayElementContext ctx) {
+        DataType element = elementOf(registerSymbol(ctx, ctx.ID().getSymbol()), ctx.ID().getSymbol());
+        if (visit(ctx.index) != DataType.INT) {
+            throw new CompilerException("An array index must be a number: " + ctx.index.getText());
+        }
+        return registerType(ctx, element);
+    }
+
+    @Override
+    public DataType visitArrayLength(Pirate_CalligraphyParser.ArrayLengthContext ctx) {
+        elementOf(registerSymbol(ctx, ctx.ID().getSymbol()), ctx.ID().getSymbol());
+        return registerType(ctx, DataType.INT);
+    }
+
+    private static DataType arrayOf(Token elementType) {
+        return elementType.getText().equals("duplicate") ? DataType.DOUBLE_ARRAY : DataType.INT_ARRAY;
+    }
+
+    private DataType elementOf(Symbol array, Token id) {
+        if (array.getType() == DataType.INT_ARRAY) {
+            return DataType.INT;
+        } else if (array.getType() == DataType.DOUBLE_ARRAY) {
+            return DataType.DOUBLE;
+        }
+        reportSemanticError(id, id.getText() + " is not an array");
+        return null;
+    }
+
+    /**
+     * Arrays can only be stored, passed along and indexed, not computed with.
+     */
+    private static void checkNotArray(DataType type, ParseTree ctx) {
+        if (type == DataType.INT_ARRAY || type == DataType.DOUBLE_ARRAY) {
+            throw new CompilerException("Arrays can't be used in " + ctx.getText());
+        }
+    }
+
     @Override
     public DataType visitVariableName(Pirate_CalligraphyParser.VariableNameContext ctx) {
         Symbol symbol = currentScope.lookupVariable(ctx.ID().getText());
@@ -318,11 +446,13 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
 
     @Override
     public DataType visitPrintStatement(Pirate_CalligraphyParser.PrintStatementContext ctx) {
+        markImpure(ctx.getStart(), "can't say anything");
         DataType type = visit(ctx.expression());
 
         if (currentScope.lookupVariable(ctx.expression().getText()) != null) {
             type = currentScope.lookupVariable(ctx.expression().getText()).getType();
         }
+        checkNotArray(type, ctx);
 
         registerType(ctx, type);
         return null;
@@ -332,6 +462,15 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
     public DataType visitAdd(Pirate_CalligraphyParser.AddContext ctx) {
         DataType left = visit(ctx.left);
         DataType right = visit(ctx.right);
+        checkNotArray(left, ctx);
+        checkNotArray(right, ctx);
+
+        // A rope can be joined with anything that has a value, the CodeGenerator needs to know what
+        registerType(ctx.left, left);
+        registerType(ctx.right, right);
+        if ((left == DataType.STRING || right == DataType.STRING) && left != DataType.VOID && right != DataType.VOID) {
+            return registerType(ctx, DataType.STRING);
+        }
 
         if (left != right) {
             throw new CompilerException("You need to use the same types");
@@ -355,10 +494,26 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
     public DataType visitCompare(Pirate_CalligraphyParser.CompareContext ctx) {
         DataType left = visit(ctx.left);
         DataType right = visit(ctx.right);
+        checkNotArray(left, ctx);
 
         if (left != right) {
             throw new CompilerException("You need yo use the same types, you've submitted: " + left + " | " + right + " | " + ctx.getText());
         }
+        // The CodeGenerator compares doubles differently
+        registerType(ctx.left, left);
+        registerType(ctx.right, right);
+
+        return DataType.BOOLEAN;
+    }
+
+    @Override
+    public DataType visitOrAnd(Pirate_CalligraphyParser.OrAndContext ctx) {
+        DataType left = visit(ctx.left);
+        DataType right = visit(ctx.right);
+
+        if (left != DataType.BOOLEAN || right != DataType.BOOLEAN) {
+            throw new CompilerException("Only booleans can be combined with " + ctx.op.getText() + ": " + ctx.getText());
+        }
 
         return DataType.BOOLEAN;
     }
@@ -367,6 +522,7 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
     public DataType visitDivide(Pirate_CalligraphyParser.DivideContext ctx) {
         DataType left = visit(ctx.left);
         DataType right = visit(ctx.right);
+        checkNotArray(left, ctx);
         if (left != right) {
             throw new CompilerException("You need yo use the same types, dividing types of " + left + " WITH " + right + " | " + ctx.getText());
         }
@@ -389,9 +545,12 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
     public DataType visitMultiply(Pirate_CalligraphyParser.MultiplyContext ctx) {
         DataType left = visit(ctx.left);
         DataType right = visit(ctx.right);
+        checkNotArray(left, ctx);
         if (left != right) {
             throw new CompilerException("You need yo use the same types");
         }
+        registerType(ctx.left, left);
+        registerType(ctx.right, right);
         if (left == null) {
             registerType(ctx, right);
             return right;
@@ -405,9 +564,12 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
     public DataType visitSubstract(Pirate_CalligraphyParser.SubstractContext ctx) {
         DataType left = visit(ctx.left);
         DataType right = visit(ctx.right);
+        checkNotArray(left, ctx);
         if (left != right) {
             throw new CompilerException("You need yo use the same types");
         }
+        registerType(ctx.left, left);
+        registerType(ctx.right, right);
         if (left == null) {
             registerType(ctx, right);
             return right;
@@ -436,10 +598,13 @@ public class Checker extends Pirate_CalligraphyBaseVisitor<DataType> {
     public DataType visitCompareStatement(Pirate_CalligraphyParser.CompareStatementContext ctx) {
         DataType left = visit(ctx.left);
         DataType right = visit(ctx.right);
+        checkNotArray(left, ctx);
 
         if (left != right) {
             throw new CompilerException("You need yo use the same types");
         }
+        registerType(ctx.left, left);
+        registerType(ctx.right, right);
 
         return DataType.BOOLEAN;
     }
@@ -0,0 +1,657 @@
+package nl.saxion.cos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The direct backend: encodes the instructions generated by the CodeGenerator straight into a class
+ * file, without going through the Jasmin assembler. Jasmin lexes and parses the whole program text
+ * with a general purpose grammar and builds an object per instruction before it writes any bytes;
+ * this writer looks every instruction up in a table and appends its bytes to the method's code
+ * buffer right away.
+ *
+ * Only the part of the Jasmin language the CodeGenerator uses is supported: the .bytecode, .source,
+ * .class, .super, .field, .method, .limit, .catch and .end method directives, labels and all
+ * instructions except the switches, jsr/ret, invokeinterface, invokedynamic and multianewarray.
+ * Anything else is reported as an AssembleException.
+ */
+public class ClassFileWriter {
+    private static final String[] OPCODES = {
+            "nop", "aconst_null", "iconst_m1", "iconst_0", "iconst_1", "iconst_2", "iconst_3", "iconst_4",
+            "iconst_5", "lconst_0", "lconst_1", "fconst_0", "fconst_1", "fconst_2", "dconst_0", "dconst_1",
+            "bipush", "sipush", "ldc", "ldc_w", "ldc2_w", "iload", "lload", "fload", "dload", "aload",
+            "iload_0", "iload_1", "iload_2", "iload_3", "lload_0", "lload_1", "lload_2", "lload_3",
+            "fload_0", "fload_1", "fload_2", "fload_3", "dload_0", "dload_1", "dload_2", "dload_3",
+            "aload_0", "aload_1", "aload_2", "aload_3", "iaload", "laload", "faload", "daload", "aaload",
+            "baload", "caload", "saload", "istore", "lstore", "fstore", "dstore", "astore", "istore_0",
+            "istore_1", "istore_2", "istore_3", "lstore_0", "lstore_1", "lstore_2", "lstore_3", "fstore_0",
+            "fstore_1", "fstore_2", "fstore_3", "dstore_0", "dstore_1", "dstore_2", "dstore_3", "astore_0",
+            "astore_1", "astore_2", "astore_3", "iastore", "lastore", "fastore", "dastore", "aastore",
+            "bastore", "castore", "sastore", "pop", "pop2", "dup", "dup_x1", "dup_x2", "dup2", "dup2_x1",
+            "dup2_x2", "swap", "iadd", "ladd", "fadd", "dadd", "isub", "lsub", "fsub", "dsub", "imul",
+            "lmul", "fmul", "dmul", "idiv", "ldiv", "fdiv", "ddiv", "irem", "lrem", "frem", "drem", "ineg",
+            "lneg", "fneg", "dneg", "ishl", "lshl", "ishr", "lshr", "iushr", "lushr", "iand", "land", "ior",
+            "lor", "ixor", "lxor", "iinc", "i2l", "i2f", "i2d", "l2i", "l2f", "l2d", "f2i", "f2l", "f2d",
+            "d2i", "d2l", "d2f", "i2b", "i2c", "i2s", "lcmp", "fcmpl", "fcmpg", "dcmpl", "dcmpg", "ifeq",
+            "ifne", "iflt", "ifge", "ifgt", "ifle", "if_icmpeq", "if_icmpne", "if_icmplt", "if_icmpge",
+            "if_icmpgt", "if_icmple", "if_acmpeq", "if_acmpne", "goto", "jsr", "ret", "tableswitch",
+            "lookupswitch", "ireturn", "lreturn", "freturn", "dreturn", "areturn", "return", "getstatic",
+            "putstatic", "getfield", "putfield", "invokevirtual", "invokespecial", "invokestatic",
+            "invokeinterface", "invokedynamic", "new", "newarray", "anewarray", "arraylength", "athrow",
+            "checkcast", "instanceof", "monitorenter", "monitorexit", "wide", "multianewarray", "ifnull",
+            "ifnonnull", "goto_w", "jsr_w",
+    };
+
+    private static final Map<String, Integer> OPCODE_BY_NAME = new HashMap<>();
+
+    static {
+        for (int opcode = 0; opcode < OPCODES.length; opcode++) {
+            OPCODE_BY_NAME.put(OPCODES[opcode], opcode);
+        }
+    }
+
+    private static final int WIDE = 196;
+    private static final int GOTO_W = 200;
+
+    private static final int ACC_SUPER = 0x0020;
+
+    /** The JVM rejects methods with more bytes of code than this. */
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private final ConstantPool constantPool = new ConstantPool();
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    private int majorVersion = 45;
+    private int minorVersion = 3;
+    private int accessFlags = 0;
+    private int thisClass;
+    private int superClass;
+    private int sourceFile = 0;
+
+    private MethodWriter method;
+    private int lineNumber;
+
+    /**
+     * Encodes the generated code into a class file.
+     *
+     * @param jasminBytecode  The code generated by the CodeGenerator.
+     * @throws AssembleException if the code contains something this writer does not support
+     */
+    public static AssembledClass assemble(JasminBytecode jasminBytecode) throws AssembleException {
+        ClassFileWriter writer = new ClassFileWriter();
+        CharSequence code = jasminBytecode.getText();
+
+        int lineStart = 0;
+        for (int i = 0; i < code.length(); i++) {
+            if (code.charAt(i) == '\n') {
+                writer.lineNumber++;
+                writer.line(code.subSequence(lineStart, i).toString().trim());
+                lineStart = i + 1;
+            }
+        }
+
+        return AssembledClass.fromClassBytes(writer.toByteArray(), jasminBytecode.getClassName());
+    }
+
+    private void line(String line) throws AssembleException {
+        if (line.isEmpty() || line.startsWith(";")) {
+            return;
+        }
+
+        if (line.startsWith(".")) {
+            directive(line);
+        } else if (line.endsWith(":") && line.indexOf(' ') < 0) {
+            requireMethod(line).label(line.substring(0, line.length() - 1));
+        } else {
+            requireMethod(line).instruction(line);
+        }
+    }
+
+    private void directive(String line) throws AssembleException {
+        String[] words = line.split("\\s+");
+        switch (words[0]) {
+            case ".bytecode":
+                String[] version = words[1].split("\\.");
+                majorVersion = Integer.parseInt(version[0]);
+                minorVersion = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+                break;
+
+            case ".source":
+                sourceFile = constantPool.utf8(words[1]);
+                break;
+
+            case ".class":
+                accessFlags = accessFlags(words, 1, words.length - 1) | ACC_SUPER;
+                thisClass = constantPool.classRef(words[words.length - 1]);
+                break;
+
+            case ".super":
+                superClass = constantPool.classRef(words[1]);
+                break;
+
+            case ".field":
+                fields.add(field(words));
+                break;
+
+            case ".method":
+                if (method != null) {
+                    throw error("Method inside method");
+                }
+                String nameAndDescriptor = words[words.length - 1];
+                int descriptorStart = nameAndDescriptor.indexOf('(');
+                method = new MethodWriter(accessFlags(words, 1, words.length - 1),
+                        nameAndDescriptor.substring(0, descriptorStart), nameAndDescriptor.substring(descriptorStart));
+                break;
+
+            case ".limit":
+                if (words[1].equals("stack")) {
+                    requireMethod(line).maxStack = Integer.parseInt(words[2]);
+                } else {
+                    requireMethod(line).maxLocals = Integer.parseInt(words[2]);
+                }
+                break;
+
+            case ".catch":
+                // .catch <class> from <label> to <label> using <label>
+                int type = words[1].equals("all") ? 0 : constantPool.classRef(words[1]);
+                requireMethod(line).exceptionHandlers.add(new String[]{words[3], words[5], words[7], Integer.toString(type)});
+                break;
+
+            case ".end":
+                methods.add(requireMethod(line).toByteArray());
+                method = null;
+                break;
+
+            default:
+                throw error("Unsupported directive " + words[0]);
+        }
+    }
+
+    private byte[] field(String[] words) throws AssembleException {
+        if (Arrays.asList(words).contains("=")) {
+            throw error("Field initializers are not supported");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(accessFlags(words, 1, words.length - 2));
+            out.writeShort(constantPool.utf8(words[words.length - 2]));
+            out.writeShort(constantPool.utf8(words[words.length - 1]));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int accessFlags(String[] words, int from, int to) throws AssembleException {
+        int flags = 0;
+        for (int i = from; i < to; i++) {
+            switch (words[i]) {
+                case "public": flags |= 0x0001; break;
+                case "private": flags |= 0x0002; break;
+                case "protected": flags |= 0x0004; break;
+                case "static": flags |= 0x0008; break;
+                case "final": flags |= 0x0010; break;
+                case "synchronized": flags |= 0x0020; break;
+                case "volatile": flags |= 0x0040; break;
+                case "transient": flags |= 0x0080; break;
+                case "native": flags |= 0x0100; break;
+                case "abstract": flags |= 0x0400; break;
+                default: throw error("Unknown access modifier " + words[i]);
+            }
+        }
+        return flags;
+    }
+
+    private MethodWriter requireMethod(String line) throws AssembleException {
+        if (method == null) {
+            throw error("Not inside a method: " + line);
+        }
+        return method;
+    }
+
+    private AssembleException error(String message) {
+        return new AssembleException("line " + lineNumber + ": " + message);
+    }
+
+    private byte[] toByteArray() throws AssembleException {
+        if (method != null) {
+            throw error("Missing .end method");
+        }
+        if (superClass == 0) {
+            superClass = constantPool.classRef("java/lang/Object");
+        }
+        int sourceFileAttribute = sourceFile == 0 ? 0 : constantPool.utf8("SourceFile");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(minorVersion);
+            out.writeShort(majorVersion);
+            constantPool.write(out);
+            out.writeShort(accessFlags);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            if (sourceFile == 0) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.writeShort(sourceFileAttribute);
+                out.writeInt(2);
+                out.writeShort(sourceFile);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The code of one method. Branches to labels that are not defined yet are written as zero and
+     * patched when the method ends.
+     */
+    private class MethodWriter {
+        private final int accessFlags;
+        private final int name;
+        private final int descriptor;
+        private int maxStack = 1;
+        private int maxLocals = 1;
+
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final Map<String, Integer> labels = new HashMap<>();
+        private final List<int[]> branches = new ArrayList<>();
+        private final List<String> branchLabels = new ArrayList<>();
+        private final List<String[]> exceptionHandlers = new ArrayList<>();
+
+        MethodWriter(int accessFlags, String name, String descriptor) {
+            this.accessFlags = accessFlags;
+            this.name = constantPool.utf8(name);
+            this.descriptor = constantPool.utf8(descriptor);
+        }
+
+        void label(String label) throws AssembleException {
+            if (labels.put(label, code.size()) != null) {
+                throw error("Duplicate label " + label);
+            }
+        }
+
+        void instruction(String line) throws AssembleException {
+            int space = line.indexOf(' ');
+            String mnemonic = space < 0 ? line : line.substring(0, space);
+            String operand = space < 0 ? "" : line.substring(space + 1).trim();
+
+            Integer opcode = OPCODE_BY_NAME.get(mnemonic);
+            if (opcode == null) {
+                throw error("Unknown instruction " + mnemonic);
+            }
+
+            try {
+                switch (mnemonic) {
+                    case "bipush":
+                        code.write(opcode);
+                        code.write(Integer.parseInt(operand));
+                        break;
+
+                    case "sipush":
+                        code.write(opcode);
+                        writeShort(Integer.parseInt(operand));
+                        break;
+
+                    case "ldc":
+                    case "ldc_w":
+                        int constant = ldcConstant(operand);
+                        if (constant < 256 && mnemonic.equals("ldc")) {
+                            code.write(opcode);
+                            code.write(constant);
+                        } else {
+                            code.write(OPCODE_BY_NAME.get("ldc_w"));
+                            writeShort(constant);
+                        }
+                        break;
+
+                    case "ldc2_w":
+                        code.write(opcode);
+                        writeShort(isFloatingPoint(operand)
+                                ? constantPool.doubleConstant(Double.parseDouble(operand))
+                                : constantPool.longConstant(Long.parseLong(operand)));
+                        break;
+
+                    case "iload": case "lload": case "fload": case "dload": case "aload":
+                    case "istore": case "lstore": case "fstore": case "dstore": case "astore":
+                        int index = Integer.parseInt(operand);
+                        if (index > 255) {
+                            code.write(WIDE);
+                            code.write(opcode);
+                            writeShort(index);
+                        } else {
+                            code.write(opcode);
+                            code.write(index);
+                        }
+                        break;
+
+                    case "iinc":
+                        String[] parts = operand.split("\\s+");
+                        int variable = Integer.parseInt(parts[0]);
+                        int increment = Integer.parseInt(parts[1]);
+                        if (variable > 255 || increment < Byte.MIN_VALUE || increment > Byte.MAX_VALUE) {
+                            code.write(WIDE);
+                            code.write(opcode);
+                            writeShort(variable);
+                            writeShort(increment);
+                        } else {
+                            code.write(opcode);
+                            code.write(variable);
+                            code.write(increment);
+                        }
+                        break;
+
+                    case "getstatic": case "putstatic": case "getfield": case "putfield":
+                        // owner/name descriptor
+                        String[] field = operand.split("\\s+");
+                        int slash = field[0].lastIndexOf('/');
+                        code.write(opcode);
+                        writeShort(constantPool.fieldRef(field[0].substring(0, slash), field[0].substring(slash + 1), field[1]));
+                        break;
+
+                    case "invokevirtual": case "invokespecial": case "invokestatic":
+                        // owner/name(descriptor)
+                        int parenthesis = operand.indexOf('(');
+                        int ownerEnd = operand.lastIndexOf('/', parenthesis);
+                        code.write(opcode);
+                        writeShort(constantPool.methodRef(operand.substring(0, ownerEnd),
+                                operand.substring(ownerEnd + 1, parenthesis), operand.substring(parenthesis)));
+                        break;
+
+                    case "new": case "anewarray": case "checkcast": case "instanceof":
+                        code.write(opcode);
+                        writeShort(constantPool.classRef(operand));
+                        break;
+
+                    case "newarray":
+                        code.write(opcode);
+                        code.write(arrayType(operand));
+                        break;
+
+                    case "tableswitch": case "lookupswitch": case "jsr": case "jsr_w": case "ret":
+                    case "invokeinterface": case "invokedynamic": case "multianewarray": case "wide":
+                        throw error("Unsupported instruction " + mnemonic);
+
+                    default:
+                        if (isBranch(opcode)) {
+                            branches.add(new int[]{code.size(), code.size() + 1, opcode == GOTO_W ? 4 : 2});
+                            branchLabels.add(operand);
+                            code.write(opcode);
+                            if (opcode == GOTO_W) {
+                                writeShort(0);
+                            }
+                            writeShort(0);
+                        } else if (operand.isEmpty()) {
+                            code.write(opcode);
+                        } else {
+                            throw error(mnemonic + " does not take an operand");
+                        }
+                        break;
+                }
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                throw error("Invalid operand for " + mnemonic + ": " + operand);
+            }
+        }
+
+        private boolean isBranch(int opcode) {
+            return (opcode >= 153 && opcode <= 167) || opcode == 198 || opcode == 199 || opcode == GOTO_W;
+        }
+
+        private int ldcConstant(String operand) {
+            if (operand.startsWith("\"")) {
+                return constantPool.stringConstant(unescape(operand.substring(1, operand.length() - 1)));
+            }
+            if (isFloatingPoint(operand)) {
+                return constantPool.floatConstant(Float.parseFloat(operand));
+            }
+            return constantPool.intConstant(Integer.parseInt(operand));
+        }
+
+        private boolean isFloatingPoint(String operand) {
+            return operand.contains(".") || operand.contains("e") || operand.contains("E");
+        }
+
+        private int arrayType(String type) throws AssembleException {
+            switch (type) {
+                case "boolean": return 4;
+                case "char": return 5;
+                case "float": return 6;
+                case "double": return 7;
+                case "byte": return 8;
+                case "short": return 9;
+                case "int": return 10;
+                case "long": return 11;
+                default: throw error("Unknown array type " + type);
+            }
+        }
+
+        private void writeShort(int value) {
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        private int labelOffset(String label) throws AssembleException {
+            Integer offset = labels.get(label);
+            if (offset == null) {
+                throw error("Undefined label " + label);
+            }
+            return offset;
+        }
+
+        byte[] toByteArray() throws AssembleException {
+            byte[] bytes = code.toByteArray();
+            if (bytes.length > MAX_CODE_LENGTH) {
+                throw error("The method has " + bytes.length + " bytes of code, at most " + MAX_CODE_LENGTH
+                        + " are allowed");
+            }
+            for (int i = 0; i < branches.size(); i++) {
+                int[] branch = branches.get(i);
+                int offset = labelOffset(branchLabels.get(i)) - branch[0];
+                if (branch[2] == 2) {
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw error("Branch to " + branchLabels.get(i) + " is too far, the method is too long");
+                    }
+                } else {
+                    bytes[branch[1]] = (byte) (offset >> 24);
+                    bytes[branch[1] + 1] = (byte) (offset >> 16);
+                    branch[1] += 2;
+                }
+                bytes[branch[1]] = (byte) (offset >> 8);
+                bytes[branch[1] + 1] = (byte) offset;
+            }
+
+            ByteArrayOutputStream method = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(method);
+            try {
+                out.writeShort(accessFlags);
+                out.writeShort(name);
+                out.writeShort(descriptor);
+                out.writeShort(1);
+
+                // Code attribute
+                out.writeShort(constantPool.utf8("Code"));
+                out.writeInt(12 + bytes.length + 8 * exceptionHandlers.size());
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeShort(exceptionHandlers.size());
+                for (String[] handler : exceptionHandlers) {
+                    out.writeShort(labelOffset(handler[0]));
+                    out.writeShort(labelOffset(handler[1]));
+                    out.writeShort(labelOffset(handler[2]));
+                    out.writeShort(Integer.parseInt(handler[3]));
+                }
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return method.toByteArray();
+        }
+    }
+
+    /**
+     * Resolves the escapes Jasmin allows in string constants.
+     */
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 == text.length()) {
+                result.append(c);
+                continue;
+            }
+            char escaped = text.charAt(++i);
+            switch (escaped) {
+                case 'n': result.append('\n'); break;
+                case 't': result.append('\t'); break;
+                case 'r': result.append('\r'); break;
+                case 'u':
+                    result.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default: result.append(escaped); break;
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * The constant pool of the class. Every constant is added only once.
+     */
+    private static class ConstantPool {
+        private static final int UTF8 = 1;
+        private static final int INTEGER = 3;
+        private static final int FLOAT = 4;
+        private static final int LONG = 5;
+        private static final int DOUBLE = 6;
+        private static final int CLASS = 7;
+        private static final int STRING = 8;
+        private static final int FIELD_REF = 9;
+        private static final int METHOD_REF = 10;
+        private static final int NAME_AND_TYPE = 12;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            String key = "U" + value;
+            Integer index = indexes.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(UTF8);
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return add(key, 1);
+        }
+
+        int intConstant(int value) {
+            return constant(INTEGER, "I" + value, () -> out.writeInt(value), 1);
+        }
+
+        int floatConstant(float value) {
+            return constant(FLOAT, "F" + Float.floatToRawIntBits(value), () -> out.writeFloat(value), 1);
+        }
+
+        int longConstant(long value) {
+            return constant(LONG, "J" + value, () -> out.writeLong(value), 2);
+        }
+
+        int doubleConstant(double value) {
+            return constant(DOUBLE, "D" + Double.doubleToRawLongBits(value), () -> out.writeDouble(value), 2);
+        }
+
+        int classRef(String name) {
+            int utf8 = utf8(name);
+            return constant(CLASS, "C" + name, () -> out.writeShort(utf8), 1);
+        }
+
+        int stringConstant(String value) {
+            int utf8 = utf8(value);
+            return constant(STRING, "S" + value, () -> out.writeShort(utf8), 1);
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return memberRef(FIELD_REF, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return memberRef(METHOD_REF, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = constant(NAME_AND_TYPE, "N" + name + ' ' + descriptor, () -> {
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            }, 1);
+            return constant(tag, tag + owner + '.' + name + ' ' + descriptor, () -> {
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            }, 1);
+        }
+
+        private interface Entry {
+            void write() throws IOException;
+        }
+
+        private int constant(int tag, String key, Entry entry, int slots) {
+            Integer index = indexes.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(tag);
+                entry.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return add(key, slots);
+        }
+
+        private int add(String key, int slots) {
+            int index = count;
+            indexes.put(key, index);
+            count += slots;
+            return index;
+        }
+
+        void write(DataOutputStream classOut) throws IOException {
+            classOut.writeShort(count);
+            bytes.writeTo(classOut);
+        }
+    }
+}
@@ -2,36 +2,126 @@ package nl.saxion.cos;
 
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeProperty;
+import org.antlr.v4.runtime.tree.RuleNode;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
     private JasminBytecode jasminCode;
     private ParseTreeProperty<DataType> types;
     private ParseTreeProperty<Symbol> symbols;
+    private ParseTreeProperty<Object> constants;
+    private LoopInvariants loopInvariants;
+    private boolean bufferedOutput = false;
+    private int memoCacheSize = 256;
 
     private int unique = 0;
 
+    /** The method that is being generated, null for main. */
+    private Pirate_CalligraphyParser.MethodDeclarationStatementContext currentMethod;
+    /** The calls of the current method to itself that become a jump to methodEntry, see findTailCalls. */
+    private Set<ParseTree> tailCalls = Set.of();
+    private String methodEntry;
+
     public CodeGenerator(JasminBytecode jasminCode, ParseTreeProperty<DataType> types, ParseTreeProperty<Symbol> symbols) {
+        this(jasminCode, types, symbols, new ParseTreeProperty<>());
+    }
+
+    /**
+     * @param constants  The values of the expressions the ConstantFolder could evaluate.
+     */
+    public CodeGenerator(JasminBytecode jasminCode, ParseTreeProperty<DataType> types, ParseTreeProperty<Symbol> symbols,
+                         ParseTreeProperty<Object> constants) {
         this.jasminCode = jasminCode;
         this.symbols = symbols;
         this.types = types;
+        this.constants = constants;
+    }
+
+    /**
+     * @param loopInvariants  The expressions to compute before loops instead of in every iteration,
+     *                        or null to compute everything where it is written.
+     */
+    public void setLoopInvariants(LoopInvariants loopInvariants) {
+        this.loopInvariants = loopInvariants;
+    }
+
+    /**
+     * @param bufferedOutput  Whether say writes to a buffer that is printed in large blocks,
+     *                        instead of calling System.out.println. See BufferedOutput.
+     */
+    public void setBufferedOutput(boolean bufferedOutput) {
+        this.bufferedOutput = bufferedOutput;
+    }
+
+    /**
+     * @param memoCacheSize  The largest number of arguments every stashed objective remembers what
+     *                       it gave for. See Memoizer.
+     */
+    public void setMemoCacheSize(int memoCacheSize) {
+        this.memoCacheSize = memoCacheSize;
+    }
+
+    /**
+     * Expressions with a value that is known at compile time are replaced by a single load, and so
+     * are expressions that were computed before the loop they are in.
+     */
+    @Override
+    public Void visit(ParseTree tree) {
+        Object constant = constants.get(tree);
+        Integer slot = loopInvariants == null ? null : loopInvariants.getSlot(tree);
+        if (slot != null) {
+            jasminCode.add((loopInvariants.getType(tree) == DataType.DOUBLE ? "dload " : "iload ") + slot);
+        } else if (constant instanceof Integer) {
+            loadInt((Integer) constant);
+        } else if (constant instanceof Double) {
+            loadDouble((Double) constant);
+        } else if (constant instanceof Boolean) {
+            jasminCode.add((Boolean) constant ? "iconst_1" : "iconst_0");
+        } else {
+            return super.visit(tree);
+        }
+        return null;
     }
 
+    @Override
+    public Void visitChildren(RuleNode node) {
+        // Go through visit(), so constant expressions are also replaced when they're visited implicitly
+        for (int i = 0; i < node.getChildCount(); i++) {
+            visit(node.getChild(i));
+        }
+        return null;
+    }
+
+    /**
+     * Labels are numbered per CodeGenerator, so compiling the same source twice gives exactly the
+     * same code. The CompileCache relies on that.
+     */
     private String newLabel() {
         return "L" + ++unique;
     }
 
     @Override
     public Void visitStart(Pirate_CalligraphyParser.StartContext ctx) {
+        addRuntime(ctx);
+
         for (var mds : ctx.methodDeclarationStatement()) {
             visit(mds);
         }
 
         if (ctx.BEGIN() != null) {
             // Main method
+            // The limits are added by FrameLimits, once the code is final
             jasminCode.add(".method public static main([Ljava/lang/String;)V");
-            jasminCode.add(".limit stack 99");
-            jasminCode.add(".limit locals 99");
             jasminCode.add("");
+            String start = null;
+            if (bufferedOutput) {
+                start = newLabel();
+                BufferedOutput.beginMain(jasminCode, start);
+            }
             //Generate code to evaluate expression
 
             for (var statement : ctx.statement()) {
@@ -41,21 +131,84 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
             //Print top stack
             // TODO: Make sure the value is printed here!
 
-            jasminCode.add("return");
+            if (bufferedOutput) {
+                BufferedOutput.endMain(jasminCode, start, newLabel(), newLabel());
+            } else {
+                jasminCode.add("return");
+            }
             jasminCode.add(".end method");
 
         }
         return null;
     }
 
+
+    /**
+     * Adds the fields and methods that the generated code needs besides the methods of the program:
+     * for buffered output and for stashed objectives. All fields come first, and a single static
+     * initializer sets them up.
+     */
+    private void addRuntime(Pirate_CalligraphyParser.StartContext ctx) {
+        List<Pirate_CalligraphyParser.MethodDeclarationStatementContext> stashed = new ArrayList<>();
+        for (var method : ctx.methodDeclarationStatement()) {
+            if (method.memo != null) {
+                stashed.add(method);
+            }
+        }
+        if (!bufferedOutput && stashed.isEmpty()) {
+            return;
+        }
+
+        if (bufferedOutput) {
+            BufferedOutput.addField(jasminCode);
+        }
+        for (var method : stashed) {
+            Memoizer.addFields(jasminCode, method.methodName.getText(), parameterTypes(method), types.get(method));
+        }
+        jasminCode.add("");
+
+        jasminCode.add(".method static <clinit>()V");
+        if (bufferedOutput) {
+            BufferedOutput.addInitialization(jasminCode);
+        }
+        for (var method : stashed) {
+            Memoizer.addInitialization(jasminCode, method.methodName.getText(), parameterTypes(method),
+                    types.get(method), memoCacheSize);
+        }
+        jasminCode.add("return");
+        jasminCode.add(".end method");
+        jasminCode.add("");
+
+        if (bufferedOutput) {
+            BufferedOutput.addMethods(jasminCode);
+        }
+        if (!stashed.isEmpty()) {
+            Memoizer.addRuntime(jasminCode);
+        }
+    }
+
+    private List<DataType> parameterTypes(Pirate_CalligraphyParser.MethodDeclarationStatementContext method) {
+        List<DataType> parameters = new ArrayList<>();
+        if (method.parameters() != null) {
+            for (var parameter : method.parameters().parameter()) {
+                parameters.add(types.get(parameter));
+            }
+        }
+        return parameters;
+    }
     @Override
     public Void visitPrintStatement(Pirate_CalligraphyParser.PrintStatementContext ctx) {
+        DataType type = types.get(ctx);
+        if (bufferedOutput && type != DataType.INT_ARRAY && type != DataType.DOUBLE_ARRAY) {
+            visit(ctx.expression());
+            jasminCode.add(BufferedOutput.say(type));
+            return null;
+        }
+
         jasminCode.add("getstatic java/lang/System/out Ljava/io/PrintStream;");
 
         visit(ctx.expression());
 
-        DataType type = types.get(ctx);
-
         if (type == DataType.INT) {
             jasminCode.add("invokevirtual java/io/PrintStream/println(I)V");
         } else if (type == DataType.DOUBLE) {
@@ -73,53 +226,38 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
 
     @Override
     public Void visitIfStatement(Pirate_CalligraphyParser.IfStatementContext ctx) {
+        String end = newLabel();
+        String next = newLabel();
 
-        visit(ctx.expression());
-
-        // expression equals true
-
-        String ifFalseLabel = newLabel();
-        String ifDoneLabel = newLabel();
-
-        jasminCode.add("ifeq " + ifFalseLabel);
-
+        // Every condition jumps to the next one when it is false, the first true one skips the rest
+        branch(ctx.expression(), next, false);
         for (var statement : ctx.statement()) {
             visit(statement);
         }
 
-        jasminCode.add("ldc 1");
-        jasminCode.add("goto " + ifDoneLabel);
-        jasminCode.add(ifFalseLabel + ":");
-        jasminCode.add("ldc 0");
-        jasminCode.add(ifDoneLabel + ":");
-
-        // expression equals false
-
-        String elseFalseLabel = newLabel();
-        String elseCloseLabel = newLabel();
-
-        jasminCode.add("ifne " + elseFalseLabel);
-
-        for (var statement : ctx.elseIfStatement()) {
-            visit(statement);
+        for (var elseIf : ctx.elseIfStatement()) {
+            jasminCode.add("goto " + end);
+            jasminCode.add(next + ":");
+            next = newLabel();
+            branch(elseIf.expression(), next, false);
+            visit(elseIf);
         }
 
         if (ctx.elseStatement() != null) {
-            if (ctx.elseIfStatement().size() != 0) {
-                jasminCode.add("ifne " + elseFalseLabel);
-            }
+            jasminCode.add("goto " + end);
+            jasminCode.add(next + ":");
             visit(ctx.elseStatement());
+        } else {
+            jasminCode.add(next + ":");
         }
-
-        jasminCode.add("goto " + elseCloseLabel);
-        jasminCode.add(elseFalseLabel + ":");
-        jasminCode.add(elseCloseLabel + ":");
+        jasminCode.add(end + ":");
 
         return null;
     }
 
     @Override
     public Void visitElseIfStatement(Pirate_CalligraphyParser.ElseIfStatementContext ctx) {
+        // The condition is generated by visitIfStatement
         for (var statements : ctx.statement()) {
             visit(statements);
         }
@@ -134,19 +272,23 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
         return null;
     }
 
+    /**
+     * Loops are generated with the test at the bottom, so every iteration only takes one branch:
+     * back to the top while the condition holds.
+     */
     @Override
     public Void visitWhileStatement(Pirate_CalligraphyParser.WhileStatementContext ctx) {
+        String body = newLabel();
         String test = newLabel();
-        String done = newLabel();
 
-        jasminCode.add(test + ":");
-        visit(ctx.expression());
-        jasminCode.add("ifeq " + done);
+        computeInvariants(ctx);
+        jasminCode.add("goto " + test);
+        jasminCode.add(body + ":");
         for (var statement : ctx.statement()) {
             visit(statement);
         }
-        jasminCode.add("goto " + test);
-        jasminCode.add(done + ":");
+        jasminCode.add(test + ":");
+        branch(ctx.expression(), body, true);
         jasminCode.add();
 
         return null;
@@ -154,39 +296,102 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
 
     @Override
     public Void visitForStatement(Pirate_CalligraphyParser.ForStatementContext ctx) {
-        String loop = newLabel();
-        String done = newLabel();
+        String body = newLabel();
+        String test = newLabel();
 
-        // creating label for the loop function
         visit(ctx.incremental);
 
-        jasminCode.add();
-        jasminCode.add(loop + ":");
-
-        // loading variables needed for equation
-        //visit(ctx.condition);
-
-        // equation (if true go to done label)
-        visit(ctx.compareStatement().left);
-        visit(ctx.compareStatement().right);
-        jasminCode.add("if_icmp" + getOpposite(ctx.compareStatement().op.getText()) + " " + done);
-
-        // if equation not true do the expression needed for the loop.
-
-        // visit al the statements.
+        computeInvariants(ctx);
+        jasminCode.add("goto " + test);
+        jasminCode.add(body + ":");
         for (var statement : ctx.statement()) {
             visit(statement);
         }
-
         visit(ctx.exp);
 
-        jasminCode.add("goto " + loop);
-        jasminCode.add(done + ":");
+        jasminCode.add(test + ":");
+        branch(ctx.compareStatement(), body, true);
         jasminCode.add();
 
         return null;
     }
 
+    /**
+     * Computes the loop invariant expressions of a loop into their own local variables, before
+     * the loop starts.
+     */
+    private void computeInvariants(ParseTree loop) {
+        if (loopInvariants == null) {
+            return;
+        }
+        for (ParseTree expression : loopInvariants.getHoisted(loop)) {
+            // accept() skips visit(), which would load the value that is computed here
+            expression.accept(this);
+            String store = loopInvariants.getType(expression) == DataType.DOUBLE ? "dstore " : "istore ";
+            jasminCode.add(store + loopInvariants.getSlot(expression));
+        }
+    }
+
+    /**
+     * Generates code that jumps to target when the condition is jumpIf, and falls through
+     * otherwise. Comparisons jump directly on their operands, instead of first turning the outcome
+     * into a 0 or 1 that has to be tested again. && and || short-circuit: the right operand is
+     * skipped as soon as the left one decides the outcome, and nested chains end up as a single
+     * tree of jumps.
+     */
+    private void branch(ParseTree condition, String target, boolean jumpIf) {
+        Object constant = constants.get(condition);
+        if (condition instanceof Pirate_CalligraphyParser.BooleanContext) {
+            constant = ((Pirate_CalligraphyParser.BooleanContext) condition).BOOLEAN().getText().equals("aye");
+        }
+
+        if (constant instanceof Boolean) {
+            if ((Boolean) constant == jumpIf) {
+                jasminCode.add("goto " + target);
+            }
+        } else if (condition instanceof Pirate_CalligraphyParser.ParenthesesContext) {
+            branch(((Pirate_CalligraphyParser.ParenthesesContext) condition).expression(), target, jumpIf);
+        } else if (condition instanceof Pirate_CalligraphyParser.CompareContext) {
+            var compare = (Pirate_CalligraphyParser.CompareContext) condition;
+            branchCompare(compare.left, compare.op.getText(), compare.right, target, jumpIf);
+        } else if (condition instanceof Pirate_CalligraphyParser.CompareStatementContext) {
+            var compare = (Pirate_CalligraphyParser.CompareStatementContext) condition;
+            branchCompare(compare.left, compare.op.getText(), compare.right, target, jumpIf);
+        } else if (condition instanceof Pirate_CalligraphyParser.OrAndContext) {
+            var orAnd = (Pirate_CalligraphyParser.OrAndContext) condition;
+            // The left operand decides && when it is false, and || when it is true
+            boolean decidingLeft = !orAnd.op.getText().equals("&&");
+            if (decidingLeft == jumpIf) {
+                branch(orAnd.left, target, jumpIf);
+                branch(orAnd.right, target, jumpIf);
+            } else {
+                String skip = newLabel();
+                branch(orAnd.left, skip, decidingLeft);
+                branch(orAnd.right, target, jumpIf);
+                jasminCode.add(skip + ":");
+            }
+        } else {
+            // Any other boolean is a 0 or 1 on the stack
+            visit(condition);
+            jasminCode.add((jumpIf ? "ifne " : "ifeq ") + target);
+        }
+    }
+
+    private void branchCompare(ParseTree left, String op, ParseTree right, String target, boolean jumpIf) {
+        visit(left);
+        visit(right);
+
+        String test = jumpIf ? getCondition(op) : getOpposite(op);
+        if (types.get(left) == DataType.DOUBLE) {
+            // A comparison with NaN is only true for !~. dcmpg makes NaN count as above, so below
+            // is false; dcmpl makes it count as below for all others.
+            jasminCode.add(op.equals("below") ? "dcmpg" : "dcmpl");
+            jasminCode.add("if" + test + " " + target);
+        } else {
+            jasminCode.add("if_icmp" + test + " " + target);
+        }
+    }
+
     @Override
     public Void visitMethodDeclarationStatement(Pirate_CalligraphyParser.MethodDeclarationStatementContext ctx) {
 
@@ -212,51 +417,48 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
         // parameters
         StringBuilder parameters = new StringBuilder();
         if (ctx.parameters() != null) {
-            int a = 0;
             for (var parameter : ctx.parameters().parameter()) {
+                if (parameter.array != null) {
+                    parameters.append(descriptor(types.get(parameter)));
+                    continue;
+                }
                 switch (parameter.type.getText()) {
                     case "rope":
-                        parameters.append("Ljava/lang/String;");
+                        parameters.append(descriptor(DataType.STRING));
                         break;
 
                     case "number":
-                        parameters.append("I");
+                        parameters.append(descriptor(DataType.INT));
                         break;
 
                     case "duplicate":
-                        parameters.append("D");
+                        parameters.append(descriptor(DataType.DOUBLE));
                         break;
-                }
 
-                if (!parameter.type.getText().equals("rope") && a > 0) {
-                    parameters.append(';');
+                    default:
+                        parameters.append(descriptor(DataType.BOOLEAN));
+                        break;
                 }
-                a++;
             }
         }
 
-        String returnTypeString = "V";
-
-        if (returnType != null) {
-            switch (returnType) {
-                case STRING:
-                    returnTypeString = "Ljava/lang/String;";
-                    break;
-
-                case INT:
-                    returnTypeString = "I";
-                    break;
+        String returnTypeString = returnType == null ? "V" : descriptor(returnType);
 
-                case DOUBLE:
-                    returnTypeString = "D";
-                    break;
-            }
+        String descriptor = "(" + parameters + ")" + returnTypeString;
+        if (ctx.memo != null) {
+            // The objective itself looks in the cache first, see Memoizer
+            jasminCode.add(".method private static " + Memoizer.bodyName(methodName) + descriptor);
+        } else {
+            jasminCode.add(".method " + privacy + " static " + methodName + descriptor);
         }
 
-        jasminCode.add(".method " + privacy + " static " + methodName + "(" + parameters + ")" + returnTypeString);
-
-        jasminCode.add(".limit stack 99");
-        jasminCode.add(".limit locals 99");
+        currentMethod = ctx;
+        tailCalls = new HashSet<>();
+        findTailCalls(ctx, tailCalls);
+        if (!tailCalls.isEmpty()) {
+            methodEntry = newLabel();
+            jasminCode.add(methodEntry + ":");
+        }
 
         for (var statement : ctx.statement()) {
             visit(statement);
@@ -275,13 +477,94 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
         jasminCode.add(".end method");
         jasminCode.add("");
 
+        if (ctx.memo != null) {
+            Memoizer.addWrapper(jasminCode, privacy, methodName, descriptor, parameterTypes(ctx), returnType);
+        }
+
+        currentMethod = null;
+        tailCalls = Set.of();
         return null;
     }
 
+    /**
+     * Collects the calls of a method to itself that are the last thing it does: the value it gives,
+     * or for a method that gives nothing, a call that is the last statement of the method or of a
+     * branch of an assuming that is the last statement. Nothing of the caller is needed anymore
+     * after such a call, so instead of calling, the arguments are stored in the parameters and the
+     * code jumps back to the start of the method. Deep recursion then takes no stack at all.
+     */
+    private void findTailCalls(Pirate_CalligraphyParser.MethodDeclarationStatementContext method, Set<ParseTree> tailCalls) {
+        if (method.returnStatement() != null) {
+            ParseTree value = method.returnStatement().expression();
+            while (value instanceof Pirate_CalligraphyParser.ParenthesesContext) {
+                value = ((Pirate_CalligraphyParser.ParenthesesContext) value).expression();
+            }
+            if (isCallTo(method, value)) {
+                tailCalls.add(value);
+            }
+        } else if (types.get(method) == DataType.VOID) {
+            findTailCalls(method, method.statement(), tailCalls);
+        }
+    }
+
+    private void findTailCalls(Pirate_CalligraphyParser.MethodDeclarationStatementContext method,
+                               List<Pirate_CalligraphyParser.StatementContext> statements, Set<ParseTree> tailCalls) {
+        if (statements.isEmpty()) {
+            return;
+        }
+        ParseTree last = statements.get(statements.size() - 1).getChild(0);
+        if (isCallTo(method, last)) {
+            tailCalls.add(last);
+        } else if (last instanceof Pirate_CalligraphyParser.IfStatementContext) {
+            var ifStatement = (Pirate_CalligraphyParser.IfStatementContext) last;
+            findTailCalls(method, ifStatement.statement(), tailCalls);
+            for (var elseIf : ifStatement.elseIfStatement()) {
+                findTailCalls(method, elseIf.statement(), tailCalls);
+            }
+            if (ifStatement.elseStatement() != null) {
+                findTailCalls(method, ifStatement.elseStatement().statement(), tailCalls);
+            }
+        }
+    }
+
+    private static boolean isCallTo(Pirate_CalligraphyParser.MethodDeclarationStatementContext method, ParseTree tree) {
+        if (!(tree instanceof Pirate_CalligraphyParser.MethodCallContext)) {
+            return false;
+        }
+        var call = (Pirate_CalligraphyParser.MethodCallContext) tree;
+        int arguments = call.parameters() == null ? 0 : call.parameters().parameter().size();
+        int parameters = method.parameters() == null ? 0 : method.parameters().parameter().size();
+        return call.ID().getText().equals(method.methodName.getText()) && arguments == parameters;
+    }
+
+    /**
+     * The JVM type descriptor of a value of the given type, as used in method descriptors.
+     */
+    private static String descriptor(DataType type) {
+        switch (type) {
+            case STRING:
+                return "Ljava/lang/String;";
+            case DOUBLE:
+                return "D";
+            case INT_ARRAY:
+                return "[I";
+            case DOUBLE_ARRAY:
+                return "[D";
+            case VOID:
+                return "V";
+            default:
+                return "I";
+        }
+    }
+
     @Override
     public Void visitReturnStatement(Pirate_CalligraphyParser.ReturnStatementContext ctx) {
         DataType t = types.get(ctx);
         visit(ctx.expression());
+        if (!tailCalls.isEmpty()) {
+            // A give can only be a tail call when it is the one of the method
+            return null;
+        }
 
         switch (t) {
             case STRING:
@@ -302,6 +585,11 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
 
     @Override
     public Void visitMethodCall(Pirate_CalligraphyParser.MethodCallContext ctx) {
+        if (tailCalls.contains(ctx)) {
+            jumpToEntry(ctx);
+            return null;
+        }
+
         Symbol s = symbols.get(ctx);
 
         String methodName = ctx.ID().getText();
@@ -309,52 +597,41 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
         // parameters
         StringBuilder parameters = new StringBuilder();
         if (ctx.parameters() != null) {
-            int i = 0;
             for (var parameter : ctx.parameters().parameter()) {
                 visit(parameter);
-
-                switch (types.get(parameter)) {
-                    case STRING:
-                        parameters.append("[Ljava/lang/String;");
-                        break;
-
-                    case INT:
-                        parameters.append("I");
-                        break;
-
-                    case DOUBLE:
-                        parameters.append("D");
-                        break;
-                }
-                if (types.get(parameter) != DataType.STRING && i > 0) {
-                    parameters.append(';');
-                }
-                i++;
+                parameters.append(descriptor(types.get(parameter)));
             }
         }
 
+        String returntype = descriptor(s.getReturntype());
 
-        String returntype = "";
-
-        switch (s.getReturntype()) {
-            case STRING:
-                returntype = "[Ljava/lang/String";
-                break;
-
-            case INT: returntype = "I";
-                break;
-
-            case DOUBLE:
-                returntype = "D";
-            break;
+        jasminCode.add("invokestatic main/" + methodName + "(" + parameters + ")" + returntype);
+        return null;
+    }
 
-            case VOID:
-                returntype = "V";
-                break;
+    /**
+     * A tail call of the current method: the arguments become the new values of the parameters,
+     * and the method starts over.
+     */
+    private void jumpToEntry(Pirate_CalligraphyParser.MethodCallContext ctx) {
+        // All arguments are computed before any parameter changes, as they can use the parameters
+        if (ctx.parameters() != null) {
+            for (var argument : ctx.parameters().parameter()) {
+                visit(argument);
+            }
         }
 
-        jasminCode.add("invokestatic main/" + methodName + "(" + parameters + ")" + returntype);
-        return null;
+        // The last argument is on top of the stack, so it is stored first
+        if (currentMethod.parameters() != null) {
+            List<Pirate_CalligraphyParser.ParameterContext> parameters = currentMethod.parameters().parameter();
+            for (int i = parameters.size() - 1; i >= 0; i--) {
+                Symbol parameter = symbols.get(parameters.get(i));
+                String store = parameter.getType() == DataType.INT || parameter.getType() == DataType.BOOLEAN ? "istore "
+                        : parameter.getType() == DataType.DOUBLE ? "dstore " : "astore ";
+                jasminCode.add(store + parameter.getIndex());
+            }
+        }
+        jasminCode.add("goto " + methodEntry);
     }
 
     @Override
@@ -408,12 +685,50 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
             jasminCode.add("istore " + symbol.getIndex());
         } else if (type == DataType.DOUBLE) {
             jasminCode.add("dstore " + symbol.getIndex());
-        } else if (type == DataType.STRING) {
+        } else if (type == DataType.STRING || type == DataType.INT_ARRAY || type == DataType.DOUBLE_ARRAY) {
             jasminCode.add("astore " + symbol.getIndex());
         }
         return null;
     }
 
+    @Override
+    public Void visitArrayDeclaration(Pirate_CalligraphyParser.ArrayDeclarationContext ctx) {
+        visit(ctx.expression());
+        jasminCode.add("astore " + symbols.get(ctx).getIndex());
+        return null;
+    }
+
+    @Override
+    public Void visitArrayElementReDeclaration(Pirate_CalligraphyParser.ArrayElementReDeclarationContext ctx) {
+        jasminCode.add("aload " + symbols.get(ctx).getIndex());
+        visit(ctx.index);
+        visit(ctx.value);
+        jasminCode.add(types.get(ctx) == DataType.DOUBLE ? "dastore" : "iastore");
+        return null;
+    }
+
+    @Override
+    public Void visitNewArray(Pirate_CalligraphyParser.NewArrayContext ctx) {
+        visit(ctx.size);
+        jasminCode.add(types.get(ctx) == DataType.DOUBLE_ARRAY ? "newarray double" : "newarray int");
+        return null;
+    }
+
+    @Override
+    public Void visitArrayElement(Pirate_CalligraphyParser.ArrayElementContext ctx) {
+        jasminCode.add("aload " + symbols.get(ctx).getIndex());
+        visit(ctx.index);
+        jasminCode.add(types.get(ctx) == DataType.DOUBLE ? "daload" : "iaload");
+        return null;
+    }
+
+    @Override
+    public Void visitArrayLength(Pirate_CalligraphyParser.ArrayLengthContext ctx) {
+        jasminCode.add("aload " + symbols.get(ctx).getIndex());
+        jasminCode.add("arraylength");
+        return null;
+    }
+
     @Override
     public Void visitVariableName(Pirate_CalligraphyParser.VariableNameContext ctx) {
 
@@ -429,6 +744,8 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
                     jasminCode.add("dload " + symbol.getIndex());
                     break;
                 case STRING:
+                case INT_ARRAY:
+                case DOUBLE_ARRAY:
                     jasminCode.add("aload " + symbol.getIndex());
                     break;
                 default:
@@ -440,10 +757,14 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
 
     @Override
     public Void visitAdd(Pirate_CalligraphyParser.AddContext ctx) {
-        visit(ctx.left);
-        visit(ctx.right);
-
         DataType type = types.get(ctx);
+        if (type == DataType.STRING) {
+            concatenate(ctx);
+            return null;
+        }
+
+        visitOperands(ctx.left, ctx.right);
+
         if (type == DataType.INT) {
             jasminCode.add("iadd");
         } else if (type == DataType.DOUBLE) {
@@ -456,6 +777,59 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
         return null;
     }
 
+    /**
+     * Joins ropes and the values added to them with a single StringBuilder. A chain like
+     * a + b + c is one tree of rope additions, so all of its operands are appended to the same
+     * builder and only the final rope is created. An operand that isn't a rope addition itself,
+     * like the 1 + 2 in 1 + 2 + a, is computed first and then appended.
+     */
+    private void concatenate(Pirate_CalligraphyParser.AddContext ctx) {
+        jasminCode.add("new java/lang/StringBuilder");
+        jasminCode.add("dup");
+        jasminCode.add("invokespecial java/lang/StringBuilder/<init>()V");
+        append(ctx.left);
+        append(ctx.right);
+        jasminCode.add("invokevirtual java/lang/StringBuilder/toString()Ljava/lang/String;");
+    }
+
+    private void append(ParseTree operand) {
+        ParseTree inner = operand;
+        while (inner instanceof Pirate_CalligraphyParser.ParenthesesContext) {
+            inner = ((Pirate_CalligraphyParser.ParenthesesContext) inner).expression();
+        }
+        // Joining ropes doesn't depend on the grouping, so <a + b> is appended piece by piece too
+        if (inner instanceof Pirate_CalligraphyParser.AddContext && types.get(inner) == DataType.STRING) {
+            append(((Pirate_CalligraphyParser.AddContext) inner).left);
+            append(((Pirate_CalligraphyParser.AddContext) inner).right);
+            return;
+        }
+
+        visit(operand);
+        jasminCode.add("invokevirtual java/lang/StringBuilder/append(" + descriptor(types.get(operand))
+                + ")Ljava/lang/StringBuilder;");
+    }
+
+    /**
+     * Pushes both operands of + or *. A constant goes last, so the ArithmeticSimplifier only has
+     * to look for the constant right before the operation. Swapping is safe because a constant has
+     * no side effects, and both operations give the same result either way round.
+     */
+    private void visitOperands(ParseTree left, ParseTree right) {
+        if (isConstant(left) && !isConstant(right)) {
+            visit(right);
+            visit(left);
+        } else {
+            visit(left);
+            visit(right);
+        }
+    }
+
+    private boolean isConstant(ParseTree tree) {
+        return constants.get(tree) != null
+                || tree instanceof Pirate_CalligraphyParser.IntContext
+                || tree instanceof Pirate_CalligraphyParser.DoubleContext;
+    }
+
     @Override
     public Void visitParentheses(Pirate_CalligraphyParser.ParenthesesContext ctx) {
         visit(ctx.expression());
@@ -474,10 +848,29 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
 
     @Override
     public Void visitDouble(Pirate_CalligraphyParser.DoubleContext ctx) {
-        jasminCode.add("ldc2_w " + ctx.DOUBLE_VALUE().getText());
+        loadDouble(Double.parseDouble(ctx.DOUBLE_VALUE().getText()));
         return null;
     }
 
+    /**
+     * Pushes an int with the shortest instruction that can hold it.
+     */
+    private void loadInt(int value) {
+        jasminCode.add(Instructions.pushInt(value));
+    }
+
+    private void loadDouble(double value) {
+        // -0.0 is not the same as dconst_0
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            jasminCode.add("dconst_0");
+        } else if (value == 1.0) {
+            jasminCode.add("dconst_1");
+        } else {
+            // Without the d, Jasmin would round the value to a float
+            jasminCode.add("ldc2_w " + value + "d");
+        }
+    }
+
     @Override
     public Void visitDivide(Pirate_CalligraphyParser.DivideContext ctx) {
         // Push left expression value
@@ -487,9 +880,9 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
 
         DataType type = types.get(ctx);
         if (type == DataType.INT) {
-            jasminCode.add("irem");
+            jasminCode.add("idiv");
         } else if (type == DataType.DOUBLE) {
-            jasminCode.add("drem");
+            jasminCode.add("ddiv");
         } else {
             System.out.println("DIVIDE | Wrong datatype: " + type + " -> in " + ctx.getText());
         }
@@ -507,10 +900,7 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
 
     @Override
     public Void visitMultiply(Pirate_CalligraphyParser.MultiplyContext ctx) {
-        // Push left expression value
-        visit(ctx.expression(0));
-        // Push right expression value
-        visit(ctx.expression(1));
+        visitOperands(ctx.left, ctx.right);
 
         DataType type = types.get(ctx);
         if (type == DataType.INT) {
@@ -527,7 +917,13 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
 
     @Override
     public Void visitInt(Pirate_CalligraphyParser.IntContext ctx) {
-        jasminCode.add("iconst_" + ctx.INT_VALUE().getText());
+        String text = ctx.INT_VALUE().getText();
+        try {
+            loadInt(Integer.parseInt(text));
+        } catch (NumberFormatException e) {
+            // Too large for an int; leave it to the assembler to report
+            jasminCode.add("ldc " + text);
+        }
         return null;
     }
 
@@ -552,16 +948,40 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
 
     @Override
     public Void visitCompare(Pirate_CalligraphyParser.CompareContext ctx) {
-        visit(ctx.left);
-        visit(ctx.right);
+        materialize(ctx);
+        return null;
+    }
 
+    @Override
+    public Void visitOrAnd(Pirate_CalligraphyParser.OrAndContext ctx) {
+        materialize(ctx);
+        return null;
+    }
+
+    /**
+     * Pushes the outcome of a condition that is used as a value, 1 if it is true and 0 if not.
+     */
+    private void materialize(ParseTree condition) {
         String falseLabel = newLabel(), doneLabel = newLabel();
-        jasminCode.add("if_icmp" + getOpposite(ctx.op.getText()) + " " + falseLabel);
-        jasminCode.add("ldc 1");
+        branch(condition, falseLabel, false);
+        jasminCode.add("iconst_1");
         jasminCode.add("goto " + doneLabel);
         jasminCode.add(falseLabel + ":");
-        jasminCode.add("ldc 0");
+        jasminCode.add("iconst_0");
         jasminCode.add(doneLabel + ":");
+    }
+
+    public static String getCondition(String inputOp) {
+        switch (inputOp) {
+            case "~~":
+                return "eq";
+            case "!~":
+                return "ne";
+            case "above":
+                return "gt";
+            case "below":
+                return "lt";
+        }
         return null;
     }
 
@@ -597,22 +1017,7 @@ public class CodeGenerator extends Pirate_CalligraphyBaseVisitor<Void> {
 
     @Override
     public Void visitCompareStatement(Pirate_CalligraphyParser.CompareStatementContext ctx) {
-
-        if (ctx.op.getText().equals("||")) {
-            System.out.println("shit");
-        }
-
-        visit(ctx.left);
-        visit(ctx.right);
-
-        String falseLabel = newLabel(), doneLabel = newLabel();
-        jasminCode.add("if_icmp" + getOpposite(ctx.op.getText()) + " " + falseLabel);
-        jasminCode.add("ldc 1");
-        jasminCode.add("goto " + doneLabel);
-        jasminCode.add(falseLabel + ":");
-        jasminCode.add("ldc 0");
-        jasminCode.add(doneLabel + ":");
+        materialize(ctx);
         return null;
     }
 }
-
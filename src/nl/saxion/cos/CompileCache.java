@@ -0,0 +1,278 @@
+package nl.saxion.cos;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of compiled programs. Entries are addressed by a hash of the source code, the class
+ * name and Compiler.VERSION, so an unchanged source is never lexed, checked, generated or assembled
+ * twice. This only works because the compiler output is deterministic: the same input always gives
+ * the same Jasmin lines and labels.
+ *
+ * Every entry is stored as a .j and a .class file named after its key. When the cache grows beyond
+ * its maximum size, the least recently used entries are removed. The last-modified time of the
+ * files is used as the access time, so the order survives restarts.
+ */
+public class CompileCache {
+	/** The size the cache is allowed to grow to when none is given: 64 MB. */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private static final String JASMIN_EXTENSION = ".j";
+	private static final String CLASS_EXTENSION = ".class";
+
+	private final Path directory;
+	private final long maxBytes;
+
+	/** Size on disk of every entry, ordered from least to most recently used. */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * A compiled program that was found in, or stored into, the cache.
+	 */
+	public static class Entry {
+		private final JasminBytecode jasminBytecode;
+		private final AssembledClass assembledClass;
+
+		Entry( JasminBytecode jasminBytecode, AssembledClass assembledClass ) {
+			this.jasminBytecode = jasminBytecode;
+			this.assembledClass = assembledClass;
+		}
+
+		public JasminBytecode getJasminBytecode() {
+			return jasminBytecode;
+		}
+
+		public AssembledClass getAssembledClass() {
+			return assembledClass;
+		}
+	}
+
+	/**
+	 * Opens (or creates) a cache directory. Entries already in the directory are reused.
+	 *
+	 * @param directory  The directory to store the cache entries in.
+	 * @param maxBytes   The maximum total size of all entries.
+	 * @throws IOException if the directory could not be created or read
+	 */
+	public CompileCache( Path directory, long maxBytes ) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(directory);
+
+		List<Path> classFiles;
+		try( Stream<Path> files = Files.list(directory) ) {
+			classFiles = files
+					.filter(p -> p.getFileName().toString().endsWith(CLASS_EXTENSION))
+					.sorted(Comparator.comparing(CompileCache::lastModified))
+					.collect(Collectors.toList());
+		}
+		for( Path classFile : classFiles ) {
+			String name = classFile.getFileName().toString();
+			String key = name.substring(0, name.length() - CLASS_EXTENSION.length());
+			if( Files.exists(jasminFile(key)) )
+				put(key, Files.size(classFile) + Files.size(jasminFile(key)));
+		}
+		evict();
+	}
+
+	/**
+	 * Computes the key of a compilation.
+	 *
+	 * @param compiler   The compiler whose options the output depends on.
+	 * @param source     The source code, as stored on disk.
+	 * @param className  Name of the class to create.
+	 * @return           A hex encoded SHA-256 hash of the compiler version and options, class
+	 *                   name and source.
+	 */
+	public static String key( Compiler compiler, byte[] source, String className ) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(Compiler.VERSION.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(compiler.getOptionsFingerprint().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(className.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(source);
+
+			StringBuilder hex = new StringBuilder();
+			for( byte b : digest.digest() )
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch( NoSuchAlgorithmException e ) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Returns the cached program for a source, or compiles, assembles and caches it.
+	 *
+	 * @param compiler   The compiler to use on a cache miss. Its diagnostics tell why compiling
+	 *                   failed when null is returned.
+	 * @param source     The source code, as stored on disk.
+	 * @param className  Name of the class to create.
+	 * @return           The compiled program, or null if the source contains errors.
+	 * @throws IOException if the cache could not be read or written
+	 * @throws AssembleException if Jasmin code was not valid
+	 */
+	public Entry compile( Compiler compiler, byte[] source, String className )
+			throws IOException, AssembleException {
+		String key = key(compiler, source, className);
+		Entry entry = lookup(key, className);
+		if( entry != null )
+			return entry;
+
+		JasminBytecode jasminBytecode = compiler.compileString(new String(source, StandardCharsets.UTF_8), className);
+		if( jasminBytecode == null )
+			return null;
+		entry = new Entry(jasminBytecode, compiler.assemble(jasminBytecode));
+		store(key, entry);
+		return entry;
+	}
+
+	/**
+	 * Looks up a cache entry and counts the hit or miss.
+	 *
+	 * @param key        The key computed by key().
+	 * @param className  Name of the class the entry was compiled to.
+	 * @return           The entry, or null if it is not in the cache.
+	 * @throws IOException if the entry could not be read
+	 */
+	public synchronized Entry lookup( String key, String className ) throws IOException {
+		if( !entries.containsKey(key) ) {
+			misses++;
+			return null;
+		}
+
+		String jasmin;
+		byte[] classBytes;
+		try {
+			jasmin = Files.readString(jasminFile(key), StandardCharsets.UTF_8);
+			classBytes = Files.readAllBytes(classFile(key));
+		} catch( NoSuchFileException e ) {
+			// Removed behind our back, treat it as a miss
+			remove(key);
+			misses++;
+			return null;
+		}
+
+		hits++;
+		FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		Files.setLastModifiedTime(classFile(key), now);
+		return new Entry(new JasminBytecode(className, jasmin), AssembledClass.fromClassBytes(classBytes, className));
+	}
+
+	/**
+	 * Adds a compiled program to the cache, evicting the least recently used entries if needed.
+	 *
+	 * @param key    The key computed by key().
+	 * @param entry  The compiled program.
+	 * @throws IOException if the entry could not be written
+	 */
+	public synchronized void store( String key, Entry entry ) throws IOException {
+		byte[] jasmin = entry.getJasminBytecode().getText().toString().getBytes(StandardCharsets.UTF_8);
+		byte[] classBytes = entry.getAssembledClass().getClassBytes();
+
+		// Write the class file last; an entry only counts once its class file exists
+		writeAtomically(jasminFile(key), jasmin);
+		writeAtomically(classFile(key), classBytes);
+
+		Long replaced = entries.remove(key);
+		if( replaced != null )
+			totalBytes -= replaced;
+		put(key, jasmin.length + classBytes.length);
+		evict();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return  The total size of all cache entries in bytes.
+	 */
+	public synchronized long getSize() {
+		return totalBytes;
+	}
+
+	public synchronized String getStatistics() {
+		long lookups = hits + misses;
+		return String.format("cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries, %d bytes",
+				hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, entries.size(), totalBytes);
+	}
+
+	private void put( String key, long size ) {
+		entries.put(key, size);
+		totalBytes += size;
+	}
+
+	private void remove( String key ) throws IOException {
+		Long size = entries.remove(key);
+		if( size != null )
+			totalBytes -= size;
+		Files.deleteIfExists(classFile(key));
+		Files.deleteIfExists(jasminFile(key));
+	}
+
+	private void evict() throws IOException {
+		Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+		while( totalBytes > maxBytes && eldest.hasNext() ) {
+			Map.Entry<String, Long> entry = eldest.next();
+			eldest.remove();
+			totalBytes -= entry.getValue();
+			evictions++;
+			Files.deleteIfExists(classFile(entry.getKey()));
+			Files.deleteIfExists(jasminFile(entry.getKey()));
+		}
+	}
+
+	private void writeAtomically( Path target, byte[] data ) throws IOException {
+		Path temp = Files.createTempFile(directory, "entry", ".tmp");
+		try {
+			Files.write(temp, data);
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private Path classFile( String key ) {
+		return directory.resolve(key + CLASS_EXTENSION);
+	}
+
+	private Path jasminFile( String key ) {
+		return directory.resolve(key + JASMIN_EXTENSION);
+	}
+
+	private static FileTime lastModified( Path path ) {
+		try {
+			return Files.getLastModifiedTime(path);
+		} catch( IOException e ) {
+			return FileTime.fromMillis(0);
+		}
+	}
+}
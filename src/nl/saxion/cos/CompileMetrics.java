@@ -0,0 +1,183 @@
+package nl.saxion.cos;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measurements of a single compilation. Every phase (lexer, parser, checker, constant folder, loop
+ * invariants, code generator, optimizer and assembler) records its wall time and the bytes it
+ * allocated, plus a phase specific count such as the number of tokens or emitted Jasmin lines.
+ *
+ * Each phase is also committed as a CompilePhaseEvent, so the phases show up in JDK Flight Recorder
+ * recordings.
+ */
+public class CompileMetrics {
+	public static final String LEXER = "lexer";
+	public static final String PARSER = "parser";
+	public static final String CHECKER = "checker";
+	public static final String CONSTANT_FOLDER = "constantFolder";
+	public static final String LOOP_INVARIANTS = "loopInvariants";
+	public static final String CODE_GENERATOR = "codeGenerator";
+	public static final String OPTIMIZER = "optimizer";
+	public static final String ASSEMBLER = "assembler";
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final String className;
+	private final List<Phase> phases = new ArrayList<>();
+
+	/**
+	 * The measurements of one phase.
+	 */
+	public static class Phase {
+		private final String name;
+		private long nanos;
+		private long allocatedBytes;
+		private final Map<String, Long> counts = new LinkedHashMap<>();
+
+		private final CompilePhaseEvent event = new CompilePhaseEvent();
+		private final long startNanos;
+		private final long startAllocated;
+
+		private Phase( String name, String className ) {
+			this.name = name;
+			event.className = className;
+			event.phase = name;
+			event.begin();
+			startAllocated = allocatedBytes();
+			startNanos = System.nanoTime();
+		}
+
+		/**
+		 * Stops measuring this phase.
+		 */
+		public void end() {
+			nanos = System.nanoTime() - startNanos;
+			allocatedBytes = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+
+			event.end();
+			event.allocatedBytes = allocatedBytes;
+			event.count = counts.values().stream().findFirst().orElse(-1L);
+			event.commit();
+		}
+
+		/**
+		 * Records a phase specific count, e.g. the number of tokens the lexer produced. Counts
+		 * must be recorded before end() is called to be part of the Flight Recorder event.
+		 */
+		public void count( String name, long value ) {
+			counts.put(name, value);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/** Wall clock time of this phase in nanoseconds. */
+		public long getNanos() {
+			return nanos;
+		}
+
+		/** Bytes allocated by the compiling thread during this phase, or -1 if the JVM cannot tell. */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		public Map<String, Long> getCounts() {
+			return Collections.unmodifiableMap(counts);
+		}
+	}
+
+	public CompileMetrics( String className ) {
+		this.className = className;
+	}
+
+	/**
+	 * Starts measuring a phase. Call end() on the returned phase when it is done.
+	 *
+	 * @param name  Name of the phase, e.g. CompileMetrics.LEXER.
+	 */
+	public Phase begin( String name ) {
+		Phase phase = new Phase(name, className);
+		phases.add(phase);
+		return phase;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	public List<Phase> getPhases() {
+		return Collections.unmodifiableList(phases);
+	}
+
+	/**
+	 * @return  The phase with the given name, or null if that phase did not run.
+	 */
+	public Phase getPhase( String name ) {
+		for( Phase phase : phases ) {
+			if( phase.getName().equals(name) )
+				return phase;
+		}
+		return null;
+	}
+
+	/**
+	 * @return  The wall clock time of all phases together in nanoseconds.
+	 */
+	public long getTotalNanos() {
+		long total = 0;
+		for( Phase phase : phases )
+			total += phase.getNanos();
+		return total;
+	}
+
+	/**
+	 * Formats all measurements as a JSON object, e.g.
+	 * <pre>
+	 * {"className":"main","totalNanos":1200,"phases":[{"name":"lexer","nanos":300,"allocatedBytes":2048,"tokens":12}, ...]}
+	 * </pre>
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"className\":\"").append(escape(className)).append('"');
+		json.append(",\"totalNanos\":").append(getTotalNanos());
+		json.append(",\"phases\":[");
+		for( int i = 0; i < phases.size(); i++ ) {
+			Phase phase = phases.get(i);
+			if( i > 0 )
+				json.append(',');
+			json.append("{\"name\":\"").append(escape(phase.getName())).append('"');
+			json.append(",\"nanos\":").append(phase.getNanos());
+			json.append(",\"allocatedBytes\":").append(phase.getAllocatedBytes());
+			for( Map.Entry<String, Long> count : phase.getCounts().entrySet() )
+				json.append(",\"").append(escape(count.getKey())).append("\":").append(count.getValue());
+			json.append('}');
+		}
+		json.append("]}");
+		return json.toString();
+	}
+
+	@Override
+	public String toString() {
+		return toJson();
+	}
+
+	private static String escape( String text ) {
+		return text.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static long allocatedBytes() {
+		if( THREADS instanceof com.sun.management.ThreadMXBean ) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+			if( threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled() )
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,31 @@
+package nl.saxion.cos;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one phase of a compilation. Created and committed by CompileMetrics.
+ */
+@Name("nl.saxion.cos.CompilePhase")
+@Label("Compile Phase")
+@Category("Pirate Calligraphy")
+@Description("A phase of compiling a Pirate Calligraphy program")
+class CompilePhaseEvent extends Event {
+	@Label("Class Name")
+	String className;
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Allocated")
+	@DataAmount
+	long allocatedBytes;
+
+	@Label("Count")
+	@Description("Tokens, parse tree nodes, Jasmin lines or class bytes, depending on the phase")
+	long count;
+}
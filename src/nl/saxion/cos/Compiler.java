@@ -1,6 +1,8 @@
 package nl.saxion.cos;
 
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeProperty;
 
@@ -8,6 +10,9 @@ import java.io.*;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Compiles source code in a custom language into Jasmin and then assembles a
@@ -16,13 +21,79 @@ import java.util.ArrayList;
  * Check the TODO's.
  */
 public class Compiler {
+	/**
+	 * Version of the generated code. Compiled programs are cached by this version, so change it
+	 * whenever the compiler starts generating different code for the same source.
+	 */
+	public static final String VERSION = "1.18";
+
+	/**
+	 * The number of parses that succeeded with fast SLL prediction, and the number that had to
+	 * be repeated with full LL prediction. Shared by all compilers in this JVM.
+	 */
+	private static final LongAdder sllParses = new LongAdder();
+	private static final LongAdder llFallbacks = new LongAdder();
+
 	/**
 	 * The number of errors detected by the lexer and parser.
 	 */
 	private int errorCount = 0;
 
+	/**
+	 * Human readable messages for every syntax or semantic error found during the last compilation.
+	 */
+	private final List<String> diagnostics = new ArrayList<>();
+
 	private ParseTreeProperty<DataType> types = new ParseTreeProperty<>();
 	private ParseTreeProperty<Symbol> symbols = new ParseTreeProperty<>();
+	private ParseTreeProperty<Object> constants = new ParseTreeProperty<>();
+
+	/**
+	 * Time, allocations and sizes of every phase of the last compilation.
+	 */
+	private CompileMetrics metrics;
+
+	/**
+	 * Whether the last parse had to be repeated with full LL prediction.
+	 */
+	private boolean usedLlFallback = false;
+
+	/**
+	 * Whether to print the generated Jasmin code to stdout, to help debugging the code generator.
+	 */
+	private boolean printJasmin = false;
+
+	/**
+	 * How assemble() turns the generated code into a class file.
+	 */
+	private Backend backend = Backend.JASMIN;
+
+	/**
+	 * Whether the generated code is optimized before it is assembled. Turning this off helps to
+	 * tell whether an optimization changed the behavior of a program.
+	 */
+	private boolean optimize = true;
+
+	/**
+	 * The largest number of instructions of a method that is inlined at its call sites, or 0 to
+	 * inline nothing.
+	 */
+	private int inlineBudget = 0;
+
+	/**
+	 * Whether say writes to a buffer in the generated class instead of straight to System.out.
+	 */
+	private boolean bufferedOutput = false;
+
+	/**
+	 * The largest number of arguments every stashed objective remembers what it gave for.
+	 */
+	private int memoCacheSize = 256;
+
+	/**
+	 * What the optimizations did to every method during the last compilation.
+	 */
+	private final List<String> optimizationReport = new ArrayList<>();
 
 	/**
 	 * Compiles a complete source code file.
@@ -57,11 +128,23 @@ public class Compiler {
 	 * @param className    Name of the class to create.
 	 */
 	private JasminBytecode compile( CharStream input, String className ) {
+		metrics = new CompileMetrics(className);
+		diagnostics.clear();
+		errorCount = 0;
+
 		// Phase 1: Run the lexer
+		CompileMetrics.Phase lexerPhase = metrics.begin(CompileMetrics.LEXER);
 		CommonTokenStream tokens = runLexer(input);
+		tokens.fill();
+		lexerPhase.count("tokens", tokens.size());
+		lexerPhase.end();
 
 		// Phase 2: Run the parser
+		CompileMetrics.Phase parserPhase = metrics.begin(CompileMetrics.PARSER);
 		ParseTree parseTree = runParser(tokens);
+		parserPhase.count("nodes", countNodes(parseTree));
+		parserPhase.count("llFallbacks", usedLlFallback ? 1 : 0);
+		parserPhase.end();
 
 		// ANTLR tries to do its best in creating a parse tree, even if the source code contains
 		// errors. So, check if that is the case and bail out if so.
@@ -69,11 +152,190 @@ public class Compiler {
 			return null;
 
 		// Phase 3: Check the source code for semantic errors
-		if( !runChecker(parseTree) )
+		CompileMetrics.Phase checkerPhase = metrics.begin(CompileMetrics.CHECKER);
+		boolean correct = runChecker(parseTree);
+		checkerPhase.end();
+		if( !correct )
 			return null;
 
-		// Phase 4: Generate code
-		return generateCode( parseTree, className );
+		// Phase 4: Evaluate the expressions that are known at compile time
+		CompileMetrics.Phase constantFolderPhase = metrics.begin(CompileMetrics.CONSTANT_FOLDER);
+		ConstantFolder constantFolder = new ConstantFolder(constants);
+		constantFolder.visit(parseTree);
+		constantFolderPhase.count("foldedNodes", constantFolder.getFoldedNodes());
+		constantFolderPhase.end();
+
+		// Phase 5: Find the expressions that can be computed once before a loop
+		CompileMetrics.Phase loopInvariantsPhase = metrics.begin(CompileMetrics.LOOP_INVARIANTS);
+		optimizationReport.clear();
+		LoopInvariants loopInvariants = null;
+		if( optimize ) {
+			loopInvariants = new LoopInvariants(types, symbols, constants);
+			loopInvariants.visit(parseTree);
+			optimizationReport.addAll(loopInvariants.getReport());
+			loopInvariantsPhase.count("hoistedExpressions", loopInvariants.getHoistedExpressions());
+		}
+		loopInvariantsPhase.end();
+
+		// Phase 6: Generate code
+		CompileMetrics.Phase codeGeneratorPhase = metrics.begin(CompileMetrics.CODE_GENERATOR);
+		JasminBytecode jasminBytecode = generateCode( parseTree, className, loopInvariants );
+		codeGeneratorPhase.count("jasminLines", jasminBytecode.getLineCount());
+		codeGeneratorPhase.end();
+
+		// Phase 7: Optimize the generated code and compute the frame limits of what is left. All
+		// passes change the same split up methods, which are only put back together at the end.
+		CompileMetrics.Phase optimizerPhase = metrics.begin(CompileMetrics.OPTIMIZER);
+		JasminMethods methods = JasminMethods.split(jasminBytecode);
+		if( optimize ) {
+			int instructionsBefore = countInstructions(methods);
+			Inliner inliner = new Inliner(inlineBudget);
+			if( inlineBudget > 0 ) {
+				inliner.inline(methods);
+				optimizationReport.addAll(inliner.getReport());
+			}
+
+			DeadCodeEliminator deadCode = new DeadCodeEliminator();
+			deadCode.eliminate(methods);
+			optimizationReport.addAll(deadCode.getReport());
+
+			ArithmeticSimplifier arithmetic = new ArithmeticSimplifier();
+			arithmetic.simplify(methods);
+			optimizationReport.addAll(arithmetic.getReport());
+
+			PeepholeOptimizer peephole = new PeepholeOptimizer();
+			peephole.optimize(methods);
+			optimizationReport.addAll(peephole.getReport());
+
+			// The arithmetic simplifier may have removed instructions too, so count from the code as generated
+			optimizerPhase.count("instructionsBefore", instructionsBefore);
+			optimizerPhase.count("instructionsAfter", peephole.getInstructionsAfter());
+			optimizerPhase.count("deadInstructions", deadCode.getRemovedInstructions());
+			optimizerPhase.count("simplifiedOperations", arithmetic.getSimplifiedOperations());
+			optimizerPhase.count("inlinedCalls", inliner.getInlinedCalls());
+		}
+		FrameLimits.addLimits(methods);
+		jasminBytecode = methods.toBytecode();
+		optimizerPhase.end();
+
+		if (printJasmin) {
+			try {
+				jasminBytecode.writeTo(new PrintWriter(System.out));
+			} catch (IOException e) {
+				// Only a debugging aid, so don't fail the compilation
+			}
+		}
+		return jasminBytecode;
+	}
+
+	/**
+	 * Print all generated Jasmin code to stdout. Off by default.
+	 */
+	public void setPrintJasmin( boolean printJasmin ) {
+		this.printJasmin = printJasmin;
+	}
+
+	/**
+	 * Selects how assemble() turns generated code into a class file. Jasmin by default.
+	 */
+	public void setBackend( Backend backend ) {
+		this.backend = backend;
+	}
+
+	public Backend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Whether to optimize the generated code. On by default.
+	 */
+	public void setOptimize( boolean optimize ) {
+		this.optimize = optimize;
+	}
+
+	/**
+	 * Inline calls to methods of at most the given number of instructions. Off (0) by default, and
+	 * only used when the code is optimized.
+	 */
+	public void setInlineBudget( int inlineBudget ) {
+		this.inlineBudget = inlineBudget;
+	}
+
+	/**
+	 * Let the generated code collect the output of say in a buffer, and print it in large blocks:
+	 * when the buffer is full, when main ends and when an exception leaves main. Off by default,
+	 * every say is a System.out.println then.
+	 */
+	public void setBufferedOutput( boolean bufferedOutput ) {
+		this.bufferedOutput = bufferedOutput;
+	}
+
+	/**
+	 * Sets how many arguments every stashed objective remembers what it gave for. When that many are
+	 * remembered, the ones that were used the longest ago are forgotten first. 256 by default.
+	 */
+	public void setMemoCacheSize( int memoCacheSize ) {
+		if( memoCacheSize < 1 )
+			throw new IllegalArgumentException("A stashed objective must remember at least one value");
+		this.memoCacheSize = memoCacheSize;
+	}
+
+	/**
+	 * Returns the options that change the generated code or class file, in a fixed order. Two
+	 * compilers with the same fingerprint produce the same output for the same source.
+	 */
+	public String getOptionsFingerprint() {
+		return "backend=" + backend
+				+ ";optimize=" + optimize
+				+ ";inlineBudget=" + inlineBudget
+				+ ";bufferedOutput=" + bufferedOutput
+				+ ";memoCacheSize=" + memoCacheSize;
+	}
+
+	/**
+	 * Returns what the optimizations did to the methods of the last compilation: how much dead
+	 * code was removed and how many instructions are left after the peephole optimizer.
+	 */
+	public List<String> getOptimizationReport() {
+		return optimizationReport;
+	}
+
+	/**
+	 * Turns the code of the last compilation into a class file with the selected backend, and
+	 * records the assembler phase in the metrics of that compilation.
+	 *
+	 * @param jasminBytecode  The code returned by one of the compile methods.
+	 * @throws IOException if files could not be read or written
+	 * @throws AssembleException if the generated code was not valid
+	 */
+	public AssembledClass assemble( JasminBytecode jasminBytecode ) throws IOException, AssembleException {
+		return AssembledClass.assemble(jasminBytecode, metrics, backend);
+	}
+
+	/**
+	 * Returns the measurements of the last compilation. Pass them to AssembledClass.assemble()
+	 * to measure the assembler as well.
+	 */
+	public CompileMetrics getMetrics() {
+		return metrics;
+	}
+
+	private static int countInstructions( JasminMethods code ) {
+		int count = 0;
+		for( JasminMethods.Method method : code.getMethods() ) {
+			for( String line : method.getBody() ) {
+				if( Instructions.isInstruction(line) )
+					count++;
+			}
+		}
+		return count;
+	}
+
+	private static int countNodes( ParseTree tree ) {
+		int count = 1;
+		for( int i = 0; i < tree.getChildCount(); i++ )
+			count += countNodes(tree.getChild(i));
+		return count;
 	}
 
 	/**
@@ -81,7 +343,7 @@ public class Compiler {
 	 * @param input  The input.
 	 * @return       A steam of tokens.
 	 */
-	private CommonTokenStream runLexer( CharStream input ) {
+	CommonTokenStream runLexer( CharStream input ) {
 		Pirate_CalligraphyLexer lexer = new Pirate_CalligraphyLexer(input);
 		lexer.addErrorListener(getErrorListener());
 		return new CommonTokenStream(lexer);
@@ -90,15 +352,55 @@ public class Compiler {
 	/**
 	 * Tries to form a parse tree from the given tokens. In case of errors, the error listener is
 	 * called, but the parser still tries to create a parse tree.
+	 *
+	 * The tokens are first parsed with SLL prediction, which is much faster but can fail on
+	 * input that full LL prediction does accept. That first attempt bails out on the first error
+	 * without reporting it; the tokens are then parsed again with full LL prediction, which
+	 * reports errors exactly like a single LL parse would.
+	 *
 	 * @param tokens  The tokens returned from the lexer.
 	 * @return        A Parse Tree.
 	 */
-	private ParseTree runParser( CommonTokenStream tokens ) {
+	ParseTree runParser( CommonTokenStream tokens ) {
+		usedLlFallback = false;
+
+		// Stage 1: SLL prediction, giving up on the first error
 		Pirate_CalligraphyParser parser = new Pirate_CalligraphyParser(tokens);
+		parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+		parser.removeErrorListeners();
+		parser.setErrorHandler(new BailErrorStrategy());
+		try {
+			ParseTree parseTree = parser.start();
+			sllParses.increment();
+			return parseTree;
+		} catch( ParseCancellationException e ) {
+			llFallbacks.increment();
+			usedLlFallback = true;
+		}
+
+		// Stage 2: full LL prediction with the normal error reporting and recovery
+		tokens.seek(0);
+		parser = new Pirate_CalligraphyParser(tokens);
+		parser.getInterpreter().setPredictionMode(PredictionMode.LL);
 		parser.addErrorListener(getErrorListener());
 		return parser.start();
 	}
 
+	/**
+	 * @return  The number of parses that succeeded with SLL prediction alone.
+	 */
+	public static long getSllParseCount() {
+		return sllParses.sum();
+	}
+
+	/**
+	 * @return  The number of parses that had to fall back to full LL prediction, either because
+	 *          SLL prediction was not strong enough or because the source contains syntax errors.
+	 */
+	public static long getLlFallbackCount() {
+		return llFallbacks.sum();
+	}
+
 	/**
 	 * Called to check if the source code was semantically correct. This method is only called when
 	 * there were no syntax errors.
@@ -121,6 +423,7 @@ public class Compiler {
 			checker.visit(parseTree);
 		} catch (CompilerException ce) {
 			System.err.println(ce.getMessage());
+			diagnostics.add(ce.getMessage());
 			return false;
 		}
 		return true;
@@ -130,14 +433,20 @@ public class Compiler {
 	 * Generate the Jasmin code for the source code. This method is only called after checking that
 	 * the code is syntactically and semantically correct, so you need not check for any errors.
 	 *
-	 * @param parseTree  The parseTree to generate code for
-	 * @return           All Jasmin code that is generated
+	 * @param parseTree       The parseTree to generate code for
+	 * @param loopInvariants  The expressions to compute before loops, or null
+	 * @return                All Jasmin code that is generated
 	 */
-	private JasminBytecode generateCode( ParseTree parseTree, String className ) {
+	private JasminBytecode generateCode( ParseTree parseTree, String className, LoopInvariants loopInvariants ) {
 		JasminBytecode jasminBytecode = new JasminBytecode( className );
-		CodeGenerator codeGenerator = new CodeGenerator(jasminBytecode, types, symbols);
+		CodeGenerator codeGenerator = new CodeGenerator(jasminBytecode, types, symbols, constants);
+		codeGenerator.setLoopInvariants(loopInvariants);
+		codeGenerator.setBufferedOutput(bufferedOutput);
+		codeGenerator.setMemoCacheSize(memoCacheSize);
 
-		jasminBytecode.add(".bytecode 55.0");
+		// Version 49 classes are checked by the type inferring verifier. Newer versions need a
+		// StackMapTable for every branch target, which Jasmin cannot generate.
+		jasminBytecode.add(".bytecode 49.0");
 		jasminBytecode.add(".source Main.java");
 		jasminBytecode.add(".class public main");
 		jasminBytecode.add(".super java/lang/Object");
@@ -163,9 +472,6 @@ public class Compiler {
 //				.add("return")
 //				.add(".end method");
 
-		for (var lines: jasminBytecode.getLines()) {
-			System.out.println(lines);
-		}
 		return jasminBytecode;
 	}
 
@@ -183,34 +489,79 @@ public class Compiler {
 			                         int line, int charPositionInLine,
 			                         String msg, RecognitionException e ) {
 				errorCount++;
+				diagnostics.add("line " + line + " col " + (charPositionInLine + 1) + ": " + msg);
 			}
 		};
 	}
 
+	/**
+	 * Returns the syntax and semantic errors that were reported while compiling. Only meaningful
+	 * when a compile method returned null.
+	 */
+	public List<String> getDiagnostics() {
+		return diagnostics;
+	}
+
 	/**
 	 * Main method.
 	 * @param args  Array of command line arguments. You can use this to supply the file name to
-	 *              compile.
+	 *              compile, "--batch" followed by directories and/or files to compile all .pc
+	 *              sources in parallel, or "--daemon" and optionally a port to start a
+	 *              CompilerDaemon. Put "--metrics" before the file name to print the
+	 *              measurements of every compile phase as JSON, "--debug" to print the
+	 *              generated Jasmin code, "--direct" to write the class file with
+	 *              ClassFileWriter instead of Jasmin, "--report" to print what the
+	 *              optimizations did to every method, "--no-optimize" to turn them off,
+	 *              "--inline" followed by a number of instructions to inline methods up to
+	 *              that size, "--buffered" to buffer the output of the program, or
+	 *              "--memo-size" followed by the number of values every stashed objective
+	 *              remembers.
 	 */
 	public static void main(String[] args) {
 		try {
-			Compiler compiler = new Compiler();
-
 			// Check that the user supplied a name of the source file
 			if (args.length == 0) {
-				System.err.println("Usage: java Compiler <name of source>");
+				System.err.println("Usage: java Compiler [--metrics] [--debug] [--direct] [--report] [--no-optimize] [--inline <budget>] [--buffered] [--memo-size <entries>] <name of source>");
+				System.err.println("       java Compiler --batch [--cache <directory>] <directory or source>...");
+				System.err.println("       java Compiler --daemon [port]");
+				return;
+			}
+
+			if (args[0].equals("--batch")) {
+				BatchCompiler.main(Arrays.copyOfRange(args, 1, args.length));
+				return;
+			}
+
+			if (args[0].equals("--daemon")) {
+				CompilerDaemon.main(Arrays.copyOfRange(args, 1, args.length));
 				return;
 			}
 
-			// Split the file name
-			// It first strips the extension, so that: tests/myFile.exlang becomes tests/myFile.
-			// Then, it removes everything that seems a path, so we end up with just 'myFile' as
-			// the class name.
-			Path sourceCodePath = Paths.get(args[0]);
+			Compiler compiler = new Compiler();
+			boolean printMetrics = false;
+			boolean printReport = false;
+			int first = 0;
+			for (; first < args.length - 1 && args[first].startsWith("--"); first++) {
+				if (args[first].equals("--metrics"))
+					printMetrics = true;
+				else if (args[first].equals("--debug"))
+					compiler.setPrintJasmin(true);
+				else if (args[first].equals("--direct"))
+					compiler.setBackend(Backend.DIRECT);
+				else if (args[first].equals("--report"))
+					printReport = true;
+				else if (args[first].equals("--no-optimize"))
+					compiler.setOptimize(false);
+				else if (args[first].equals("--inline"))
+					compiler.setInlineBudget(Integer.parseInt(args[++first]));
+				else if (args[first].equals("--buffered"))
+					compiler.setBufferedOutput(true);
+				else if (args[first].equals("--memo-size"))
+					compiler.setMemoCacheSize(Integer.parseInt(args[++first]));
+			}
 
-			String sourceFileName = sourceCodePath.getFileName().toString();
-			int dotIndex = sourceFileName.lastIndexOf('.');
-			String className = sourceFileName.substring(0, dotIndex == -1 ? sourceFileName.length() : dotIndex);
+			Path sourceCodePath = Paths.get(args[first]);
+			String className = classNameFor(sourceCodePath);
 
 			// Read the file and compile it.
 			JasminBytecode jasminBytecode = compiler.compileFile(sourceCodePath.toString(), className);
@@ -219,18 +570,56 @@ public class Compiler {
 				return;
 			}
 
-			// Write Jasmin-code to a file
-			String jasminFilename = sourceCodePath.getParent().resolve(className+".j").toString();
-			jasminBytecode.writeJasminToFile(jasminFilename);
-
-			// Try to assemble the Jasmin byte code and write that to a file
-			AssembledClass assembledClass = AssembledClass.assemble(jasminBytecode);
-			String classFilename = sourceCodePath.getParent().resolve(className+".class").toString();
-			assembledClass.writeClassToFile(classFilename);
+			writeOutput(sourceCodePath, jasminBytecode, compiler);
+			if( printReport )
+				compiler.getOptimizationReport().forEach(System.out::println);
+			if( printMetrics )
+				System.out.println(compiler.getMetrics().toJson());
 		}
 		catch( IOException | AssembleException e ) {
 			System.err.println("Something went wrong: " + e.getMessage());
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * Split the file name
+	 * It first strips the extension, so that: tests/myFile.exlang becomes tests/myFile.
+	 * Then, it removes everything that seems a path, so we end up with just 'myFile' as
+	 * the class name.
+	 *
+	 * @param sourceCodePath  Path to a source file.
+	 * @return                The class name to compile the source file to.
+	 */
+	static String classNameFor( Path sourceCodePath ) {
+		String sourceFileName = sourceCodePath.getFileName().toString();
+		int dotIndex = sourceFileName.lastIndexOf('.');
+		return sourceFileName.substring(0, dotIndex == -1 ? sourceFileName.length() : dotIndex);
+	}
+
+	/**
+	 * Writes the Jasmin code and the assembled class next to the source file they were compiled from.
+	 *
+	 * @param sourceCodePath  Path of the compiled source file.
+	 * @param jasminBytecode  The compiled Jasmin code.
+	 * @param compiler        The compiler that generated the code, which selects the backend and
+	 *                        records the assembler phase in its metrics.
+	 * @return                The assembled class.
+	 * @throws IOException if files could not be written
+	 * @throws AssembleException if Jasmin code was not valid
+	 */
+	static AssembledClass writeOutput( Path sourceCodePath, JasminBytecode jasminBytecode, Compiler compiler )
+			throws IOException, AssembleException {
+		String className = jasminBytecode.getClassName();
+
+		// Write Jasmin-code to a file
+		String jasminFilename = sourceCodePath.resolveSibling(className+".j").toString();
+		jasminBytecode.writeJasminToFile(jasminFilename);
+
+		// Try to assemble the Jasmin byte code and write that to a file
+		AssembledClass assembledClass = compiler.assemble(jasminBytecode);
+		String classFilename = sourceCodePath.resolveSibling(className+".class").toString();
+		assembledClass.writeClassToFile(classFilename);
+		return assembledClass;
+	}
 }
@@ -0,0 +1,173 @@
+package nl.saxion.cos;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thin client for a running CompilerDaemon. The client itself does no compiling, so it starts fast
+ * and leaves all the work to the warm daemon.
+ */
+public class CompilerClient implements Closeable {
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	/**
+	 * The answer of the daemon to a compile request.
+	 */
+	public static class Response {
+		private final String jasmin;
+		private final byte[] classBytes;
+		private final List<String> diagnostics;
+		private final long compileNanos;
+
+		Response( String jasmin, byte[] classBytes, List<String> diagnostics, long compileNanos ) {
+			this.jasmin = jasmin;
+			this.classBytes = classBytes;
+			this.diagnostics = diagnostics;
+			this.compileNanos = compileNanos;
+		}
+
+		public boolean isSuccess() {
+			return classBytes != null;
+		}
+
+		/** The generated Jasmin code, or null if compiling failed. */
+		public String getJasmin() {
+			return jasmin;
+		}
+
+		/** The assembled class, or null if compiling failed. */
+		public byte[] getClassBytes() {
+			return classBytes;
+		}
+
+		public List<String> getDiagnostics() {
+			return diagnostics;
+		}
+
+		/** The time the daemon spent compiling, without the socket round trip. */
+		public long getCompileNanos() {
+			return compileNanos;
+		}
+	}
+
+	/**
+	 * Connects to a daemon on the loopback interface.
+	 *
+	 * @param port  The port the daemon listens on.
+	 * @throws IOException if no daemon could be reached
+	 */
+	public CompilerClient( int port ) throws IOException {
+		socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Lets the daemon compile and assemble a piece of source code.
+	 *
+	 * @param sourceCode  The source code to compile.
+	 * @param className   Name of the class to create.
+	 * @throws IOException if the connection to the daemon failed
+	 */
+	public Response compile( String sourceCode, String className ) throws IOException {
+		byte[] source = sourceCode.getBytes(StandardCharsets.UTF_8);
+		out.writeUTF(CompilerDaemon.COMPILE);
+		out.writeUTF(className);
+		out.writeInt(source.length);
+		out.write(source);
+		out.flush();
+
+		if( in.readBoolean() ) {
+			byte[] jasmin = new byte[in.readInt()];
+			in.readFully(jasmin);
+			byte[] classBytes = new byte[in.readInt()];
+			in.readFully(classBytes);
+			return new Response(new String(jasmin, StandardCharsets.UTF_8), classBytes, List.of(), in.readLong());
+		}
+
+		List<String> diagnostics = new ArrayList<>();
+		int count = in.readInt();
+		for( int i = 0; i < count; i++ )
+			diagnostics.add(in.readUTF());
+		return new Response(null, null, diagnostics, in.readLong());
+	}
+
+	/**
+	 * @return  The cold versus warm latency statistics of the daemon.
+	 */
+	public String getStatistics() throws IOException {
+		out.writeUTF(CompilerDaemon.STATS);
+		out.flush();
+		return in.readUTF();
+	}
+
+	/**
+	 * Asks the daemon to stop.
+	 */
+	public void shutdown() throws IOException {
+		out.writeUTF(CompilerDaemon.SHUTDOWN);
+		out.flush();
+		in.readUTF();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Compiles the given files through the daemon and writes the .j and .class files next to them.
+	 *
+	 * @param args  [--port N] followed by source files, or --stats or --shutdown.
+	 */
+	public static void main( String[] args ) throws IOException {
+		int port = CompilerDaemon.DEFAULT_PORT;
+		int first = 0;
+		if( args.length >= 2 && args[0].equals("--port") ) {
+			port = Integer.parseInt(args[1]);
+			first = 2;
+		}
+		if( first == args.length ) {
+			System.err.println("Usage: java CompilerClient [--port N] (<name of source>... | --stats | --shutdown)");
+			return;
+		}
+
+		try( CompilerClient client = new CompilerClient(port) ) {
+			for( int i = first; i < args.length; i++ ) {
+				if( args[i].equals("--stats") ) {
+					System.out.println(client.getStatistics());
+					continue;
+				}
+				if( args[i].equals("--shutdown") ) {
+					client.shutdown();
+					return;
+				}
+
+				Path sourceCodePath = Paths.get(args[i]);
+				String className = Compiler.classNameFor(sourceCodePath);
+
+				long start = System.nanoTime();
+				Response response = client.compile(Files.readString(sourceCodePath), className);
+				long roundTrip = System.nanoTime() - start;
+
+				if( !response.isSuccess() ) {
+					System.err.println(sourceCodePath + ": " + String.join("\n", response.getDiagnostics()));
+					continue;
+				}
+				Files.writeString(sourceCodePath.resolveSibling(className + ".j"), response.getJasmin());
+				Files.write(sourceCodePath.resolveSibling(className + ".class"), response.getClassBytes());
+				System.out.printf("%s: compiled in %.3f ms (%.3f ms round trip)%n",
+						sourceCodePath, response.getCompileNanos() / 1e6, roundTrip / 1e6);
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package nl.saxion.cos;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-lived compiler process. Starting a JVM, deserializing the ANTLR grammar and warming up the
+ * JIT is paid only once; after that every request runs on a warm lexer, parser, Checker and
+ * CodeGenerator. Requests come in over a loopback socket, see CompilerClient for the other side.
+ *
+ * The protocol uses DataInput/DataOutputStream on both ends. A connection carries any number of
+ * requests, each starting with a command string:
+ * <pre>
+ * COMPILE   className (UTF), source length (int, at most MAX_SOURCE_BYTES), source bytes (UTF-8)
+ *           -> success (boolean)
+ *              success: jasmin length (int), jasmin bytes, class length (int), class bytes
+ *              failure: diagnostic count (int), diagnostics (UTF)
+ *              compile time on the daemon in nanoseconds (long)
+ * STATS     -> statistics (UTF)
+ * SHUTDOWN  -> acknowledgement (UTF), then the daemon stops
+ * </pre>
+ */
+public class CompilerDaemon {
+	/** The port the daemon listens on when none is given. */
+	public static final int DEFAULT_PORT = 7373;
+
+	public static final String COMPILE = "COMPILE";
+	public static final String STATS = "STATS";
+	public static final String SHUTDOWN = "SHUTDOWN";
+
+	/** The largest source a COMPILE request may send. */
+	public static final int MAX_SOURCE_BYTES = 16 * 1024 * 1024;
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "compiler-daemon-worker");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong coldNanos = new AtomicLong(-1);
+	private final AtomicLong warmNanos = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	/**
+	 * Binds the daemon to the loopback interface. Use port 0 to pick any free port.
+	 *
+	 * @param port  The port to listen on.
+	 * @throws IOException if the port could not be bound
+	 */
+	public CompilerDaemon( int port ) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until a SHUTDOWN request comes in or close() is called.
+	 */
+	public void serve() {
+		while( running ) {
+			try {
+				Socket socket = serverSocket.accept();
+				workers.submit(() -> handleConnection(socket));
+			} catch( IOException e ) {
+				if( running )
+					System.err.println("Compiler daemon: " + e.getMessage());
+			}
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * Stops accepting new connections.
+	 */
+	public void close() throws IOException {
+		running = false;
+		serverSocket.close();
+	}
+
+	private void handleConnection( Socket socket ) {
+		try( socket;
+		     DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())) ) {
+			while( true ) {
+				String command;
+				try {
+					command = in.readUTF();
+				} catch( EOFException eof ) {
+					return;
+				}
+
+				switch( command ) {
+					case COMPILE:
+						handleCompile(in, out);
+						break;
+					case STATS:
+						out.writeUTF(getStatistics());
+						break;
+					case SHUTDOWN:
+						out.writeUTF("Bye");
+						out.flush();
+						close();
+						return;
+					default:
+						out.writeUTF("Unknown command: " + command);
+						out.flush();
+						return;
+				}
+				out.flush();
+			}
+		} catch( IOException e ) {
+			System.err.println("Compiler daemon: " + e.getMessage());
+		}
+	}
+
+	private void handleCompile( DataInputStream in, DataOutputStream out ) throws IOException {
+		String className = in.readUTF();
+		int length = in.readInt();
+		if( length < 0 || length > MAX_SOURCE_BYTES ) {
+			// Skip the source, if any, so the next request on this connection is read correctly
+			if( length > 0 )
+				discard(in, length);
+			out.writeBoolean(false);
+			out.writeInt(1);
+			out.writeUTF("Source length " + length + " is not between 0 and " + MAX_SOURCE_BYTES + " bytes");
+			out.writeLong(0);
+			return;
+		}
+		byte[] source = new byte[length];
+		in.readFully(source);
+
+		long start = System.nanoTime();
+		byte[] jasmin = null;
+		byte[] classBytes = null;
+		List<String> diagnostics;
+
+		// A fresh Compiler per request keeps compilations isolated; the ANTLR caches and JIT-compiled
+		// code are shared by the whole process and stay warm.
+		Compiler compiler = new Compiler();
+		try {
+			JasminBytecode jasminBytecode = compiler.compileString(new String(source, StandardCharsets.UTF_8), className);
+			diagnostics = compiler.getDiagnostics();
+			if( jasminBytecode != null ) {
+				jasmin = jasminBytecode.getText().toString().getBytes(StandardCharsets.UTF_8);
+				classBytes = compiler.assemble(jasminBytecode).getClassBytes();
+			}
+		} catch( AssembleException | RuntimeException | StackOverflowError e ) {
+			// A source nested too deep overflows the recursive visitors; that only fails this request
+			diagnostics = List.of(e.getClass().getSimpleName() + ": " + e.getMessage());
+			jasmin = null;
+		}
+		long nanos = System.nanoTime() - start;
+		recordLatency(nanos);
+
+		out.writeBoolean(jasmin != null);
+		if( jasmin != null ) {
+			out.writeInt(jasmin.length);
+			out.write(jasmin);
+			out.writeInt(classBytes.length);
+			out.write(classBytes);
+		} else {
+			out.writeInt(diagnostics.size());
+			for( String diagnostic : diagnostics )
+				out.writeUTF(diagnostic);
+		}
+		out.writeLong(nanos);
+	}
+
+	/**
+	 * Reads and throws away the given number of bytes, without keeping them all in memory.
+	 */
+	private static void discard( DataInputStream in, int length ) throws IOException {
+		byte[] buffer = new byte[8192];
+		while( length > 0 ) {
+			int read = in.read(buffer, 0, Math.min(buffer.length, length));
+			if( read < 0 )
+				throw new EOFException();
+			length -= read;
+		}
+	}
+
+	/**
+	 * The first compilation is counted as cold, every later one as warm.
+	 */
+	private void recordLatency( long nanos ) {
+		requestCount.incrementAndGet();
+		if( !coldNanos.compareAndSet(-1, nanos) )
+			warmNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return  The number of compilations, the cold versus average warm compile latency and how
+	 *          often the parser had to fall back to full LL prediction.
+	 */
+	public String getStatistics() {
+		long requests = requestCount.get();
+		long cold = coldNanos.get();
+		if( cold < 0 )
+			return "requests: 0";
+
+		String statistics = String.format("requests: %d, cold: %.3f ms", requests, cold / 1e6);
+		if( requests > 1 )
+			statistics += String.format(", warm average: %.3f ms", warmNanos.get() / 1e6 / (requests - 1));
+		statistics += String.format(", SLL parses: %d, LL fallbacks: %d",
+				Compiler.getSllParseCount(), Compiler.getLlFallbackCount());
+		return statistics;
+	}
+
+	/**
+	 * Starts a daemon, also reachable through "java Compiler --daemon".
+	 *
+	 * @param args  Optionally the port to listen on.
+	 */
+	public static void main( String[] args ) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		CompilerDaemon daemon = new CompilerDaemon(port);
+		System.err.println("Compiler daemon listening on " + InetAddress.getLoopbackAddress().getHostAddress()
+				+ ":" + daemon.getPort());
+		daemon.serve();
+	}
+}
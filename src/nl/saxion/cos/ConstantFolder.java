@@ -0,0 +1,171 @@
+package nl.saxion.cos;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+
+/**
+ * Evaluates expressions whose value is known at compile time, like <3 * 4> + 2 or 1 below 2, so the
+ * CodeGenerator can load their value instead of computing it at runtime.
+ *
+ * Values are computed exactly like the JVM would: int arithmetic wraps around and divides towards
+ * zero, doubles follow IEEE 754. Expressions that would fail or can't be written as a constant are
+ * left alone: integer division by zero (which must throw at runtime) and doubles that end up as
+ * NaN or infinity.
+ *
+ * The value of every folded expression is stored as an Integer, Double or Boolean in constants.
+ * Literals themselves aren't stored, they are loaded directly anyway.
+ */
+public class ConstantFolder extends Pirate_CalligraphyBaseVisitor<Object> {
+    private ParseTreeProperty<Object> constants;
+
+    private int foldedNodes = 0;
+
+    public ConstantFolder(ParseTreeProperty<Object> constants) {
+        this.constants = constants;
+    }
+
+    /**
+     * @return  The number of expressions that were replaced by their value.
+     */
+    public int getFoldedNodes() {
+        return foldedNodes;
+    }
+
+    @Override
+    protected Object aggregateResult(Object aggregate, Object nextResult) {
+        // Only expressions have a value, a statement never does
+        return null;
+    }
+
+    private Object fold(ParseTree node, Object value) {
+        if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+            return null;
+        }
+        if (value != null) {
+            constants.put(node, value);
+            foldedNodes++;
+        }
+        return value;
+    }
+
+    @Override
+    public Object visitInt(Pirate_CalligraphyParser.IntContext ctx) {
+        try {
+            return Integer.parseInt(ctx.INT_VALUE().getText());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Object visitDouble(Pirate_CalligraphyParser.DoubleContext ctx) {
+        return Double.parseDouble(ctx.DOUBLE_VALUE().getText());
+    }
+
+    @Override
+    public Object visitBoolean(Pirate_CalligraphyParser.BooleanContext ctx) {
+        return ctx.BOOLEAN().getText().equals("aye");
+    }
+
+    @Override
+    public Object visitParentheses(Pirate_CalligraphyParser.ParenthesesContext ctx) {
+        return fold(ctx, visit(ctx.expression()));
+    }
+
+    @Override
+    public Object visitAdd(Pirate_CalligraphyParser.AddContext ctx) {
+        Object left = visit(ctx.left);
+        Object right = visit(ctx.right);
+        if (left instanceof Integer && right instanceof Integer) {
+            return fold(ctx, (Integer) left + (Integer) right);
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return fold(ctx, (Double) left + (Double) right);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitSubstract(Pirate_CalligraphyParser.SubstractContext ctx) {
+        Object left = visit(ctx.left);
+        Object right = visit(ctx.right);
+        if (left instanceof Integer && right instanceof Integer) {
+            return fold(ctx, (Integer) left - (Integer) right);
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return fold(ctx, (Double) left - (Double) right);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitMultiply(Pirate_CalligraphyParser.MultiplyContext ctx) {
+        Object left = visit(ctx.left);
+        Object right = visit(ctx.right);
+        if (left instanceof Integer && right instanceof Integer) {
+            return fold(ctx, (Integer) left * (Integer) right);
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return fold(ctx, (Double) left * (Double) right);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitDivide(Pirate_CalligraphyParser.DivideContext ctx) {
+        Object left = visit(ctx.left);
+        Object right = visit(ctx.right);
+        if (left instanceof Integer && right instanceof Integer && (Integer) right != 0) {
+            return fold(ctx, (Integer) left / (Integer) right);
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return fold(ctx, (Double) left / (Double) right);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitCompare(Pirate_CalligraphyParser.CompareContext ctx) {
+        Object left = visit(ctx.left);
+        Object right = visit(ctx.right);
+        if (left instanceof Boolean && right instanceof Boolean) {
+            left = (Boolean) left ? 1 : 0;
+            right = (Boolean) right ? 1 : 0;
+        }
+        if (left instanceof Integer && right instanceof Integer) {
+            return fold(ctx, compare(ctx.op.getText(), (Integer) left, (Integer) right));
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return fold(ctx, compare(ctx.op.getText(), (Double) left, (Double) right));
+        }
+        return null;
+    }
+
+    private static Boolean compare(String op, double left, double right) {
+        switch (op) {
+            case "~~":
+                return left == right;
+            case "!~":
+                return left != right;
+            case "above":
+                return left > right;
+            case "below":
+                return left < right;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Object visitOrAnd(Pirate_CalligraphyParser.OrAndContext ctx) {
+        Object left = visit(ctx.left);
+        Object right = visit(ctx.right);
+        if (left instanceof Boolean && right instanceof Boolean) {
+            if (ctx.op.getText().equals("&&")) {
+                return fold(ctx, (Boolean) left && (Boolean) right);
+            }
+            return fold(ctx, (Boolean) left || (Boolean) right);
+        }
+        return null;
+    }
+}
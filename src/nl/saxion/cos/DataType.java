@@ -6,4 +6,6 @@ public enum DataType {
     STRING,
     BOOLEAN,
     VOID,
+    INT_ARRAY,
+    DOUBLE_ARRAY,
 }
\ No newline at end of file
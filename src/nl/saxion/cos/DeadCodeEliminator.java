@@ -0,0 +1,118 @@
+package nl.saxion.cos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes the instructions of every method that can never run: the body of an assuming with a
+ * condition that is always false, an extra block after a condition that is always true, a loop that
+ * is never entered, and so on.
+ *
+ * Every path through the method is followed from its first instruction and from its exception
+ * handlers. Instructions that are on none of these paths are removed, and so are the labels that
+ * only they jumped to. Unlike the PeepholeOptimizer, this also removes dead code that jumps to
+ * itself, like a loop inside a branch that never runs.
+ */
+public class DeadCodeEliminator {
+    private final List<String> report = new ArrayList<>();
+    private int removedInstructions = 0;
+
+    /**
+     * Removes the unreachable instructions from the bodies of the methods.
+     */
+    void eliminate(JasminMethods code) {
+        for (JasminMethods.Method method : code.getMethods()) {
+            int removed = eliminateMethod(method.getBody());
+            if (removed > 0) {
+                removedInstructions += removed;
+                report.add("dead code " + method.getName() + ": removed " + removed + " instructions");
+            }
+        }
+    }
+
+    /**
+     * @return  For every method that had unreachable code, how many instructions were removed.
+     */
+    public List<String> getReport() {
+        return report;
+    }
+
+    public int getRemovedInstructions() {
+        return removedInstructions;
+    }
+
+    /**
+     * @return  The number of instructions that were removed from the body.
+     */
+    private static int eliminateMethod(List<String> body) {
+        Map<String, Integer> labels = new HashMap<>();
+        Set<String> handlerLabels = new HashSet<>();
+        for (int i = 0; i < body.size(); i++) {
+            String line = body.get(i);
+            if (Instructions.isLabel(line)) {
+                labels.put(Instructions.labelName(line), i);
+            } else if (line.startsWith(".catch")) {
+                // .catch <class> from <label> to <label> using <label>
+                String[] words = line.split("\\s+");
+                for (int word = 3; word < words.length; word += 2) {
+                    handlerLabels.add(words[word]);
+                }
+            }
+        }
+
+        boolean[] reachable = new boolean[body.size()];
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        for (String label : handlerLabels) {
+            work.push(target(labels, label));
+        }
+
+        while (!work.isEmpty()) {
+            // Follow the code from here until it jumps away for good, or reaches code that is
+            // already known to be reachable
+            for (int i = work.pop(); i < body.size() && !reachable[i]; i++) {
+                reachable[i] = true;
+                String line = body.get(i);
+                if (!Instructions.isInstruction(line)) {
+                    continue;
+                }
+                String mnemonic = Instructions.mnemonic(line);
+                if (Instructions.isBranch(mnemonic)) {
+                    work.push(target(labels, Instructions.operand(line)));
+                }
+                if (Instructions.endsFlow(mnemonic)) {
+                    break;
+                }
+            }
+        }
+
+        int removed = 0;
+        for (int i = body.size() - 1; i >= 0; i--) {
+            String line = body.get(i);
+            if (reachable[i] || Instructions.isDirective(line)) {
+                continue;
+            }
+            if (Instructions.isInstruction(line)) {
+                body.remove(i);
+                removed++;
+            } else if (Instructions.isLabel(line) && !handlerLabels.contains(Instructions.labelName(line))) {
+                body.remove(i);
+            }
+        }
+        return removed;
+    }
+
+    private static int target(Map<String, Integer> labels, String label) {
+        Integer target = labels.get(label);
+        if (target == null) {
+            throw new CompilerException("Undefined label " + label);
+        }
+        return target;
+    }
+}
@@ -0,0 +1,139 @@
+package nl.saxion.cos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adds exact .limit stack and .limit locals directives to every method of the generated code.
+ *
+ * The operand stack depth is followed through every instruction, including both ways out of every
+ * branch, so the stack limit is the deepest the stack gets on any path. Doubles take two stack
+ * slots. The locals limit covers the arguments and the highest slot any instruction uses, again
+ * counting two slots for doubles.
+ *
+ * This runs as the last step of code generation, after the code has been optimized, so the limits
+ * fit the code that is actually assembled.
+ */
+final class FrameLimits {
+    private FrameLimits() {
+    }
+
+    /**
+     * @return  The code with limits for every method. Limits that are already present are replaced.
+     * @throws CompilerException if the stack depth of a method can't be determined, e.g. because
+     *                           two paths reach an instruction with a different stack depth
+     */
+    static JasminBytecode addLimits(JasminBytecode code) {
+        JasminMethods methods = JasminMethods.split(code);
+        addLimits(methods);
+        return methods.toBytecode();
+    }
+
+    /**
+     * Adds the limits to the bodies of the methods, replacing limits that are already present.
+     * @throws CompilerException if the stack depth of a method can't be determined
+     */
+    static void addLimits(JasminMethods code) {
+        for (JasminMethods.Method method : code.getMethods()) {
+            List<String> body = method.getBody();
+            body.removeIf(line -> line.startsWith(".limit"));
+
+            int maxStack = maxStack(method.getName(), body);
+            int maxLocals = maxLocals(method.getDescriptor(), body);
+            body.add(0, ".limit stack " + maxStack);
+            body.add(1, ".limit locals " + maxLocals);
+        }
+    }
+
+    static int maxLocals(String descriptor, List<String> body) {
+        int max = Instructions.argumentSize(descriptor);
+        for (String line : body) {
+            line = line.trim();
+            if (!Instructions.isInstruction(line)) {
+                continue;
+            }
+            int variable = Instructions.localVariable(line);
+            if (variable >= 0) {
+                int size = Instructions.mnemonic(line).equals("iinc") ? 1 : Instructions.localVariableSize(line);
+                max = Math.max(max, variable + size);
+            }
+        }
+        return max;
+    }
+
+    static int maxStack(String method, List<String> body) {
+        List<String> instructions = new ArrayList<>();
+        Map<String, Integer> labels = new HashMap<>();
+        List<String[]> handlers = new ArrayList<>();
+        for (String line : body) {
+            line = line.trim();
+            if (Instructions.isLabel(line)) {
+                labels.put(Instructions.labelName(line), instructions.size());
+            } else if (line.startsWith(".catch")) {
+                handlers.add(line.split("\\s+"));
+            } else if (Instructions.isInstruction(line)) {
+                instructions.add(line);
+            }
+        }
+
+        // The stack depth before every instruction, -1 if no path to it was found yet
+        int[] depths = new int[instructions.size() + 1];
+        Arrays.fill(depths, -1);
+        Deque<Integer> work = new ArrayDeque<>();
+        int max = 0;
+
+        flow(method, depths, work, 0, 0);
+        for (String[] handler : handlers) {
+            // .catch <class> from <label> to <label> using <label>: the handler starts with the exception
+            flow(method, depths, work, target(method, labels, handler[7]), 1);
+            max = 1;
+        }
+
+        while (!work.isEmpty()) {
+            int index = work.pop();
+            if (index == instructions.size()) {
+                throw new CompilerException(method + ": execution falls off the end of the method");
+            }
+            String instruction = instructions.get(index);
+            String mnemonic = Instructions.mnemonic(instruction);
+
+            int depth = depths[index] + Instructions.stackEffect(instruction);
+            if (depth < 0) {
+                throw new CompilerException(method + ": stack underflow at " + instruction);
+            }
+            // Only the instructions that push more than they pop can make the stack deeper
+            max = Math.max(max, depth);
+
+            if (Instructions.isBranch(mnemonic)) {
+                flow(method, depths, work, target(method, labels, Instructions.operand(instruction)), depth);
+            }
+            if (!Instructions.endsFlow(mnemonic)) {
+                flow(method, depths, work, index + 1, depth);
+            }
+        }
+        return max;
+    }
+
+    private static int target(String method, Map<String, Integer> labels, String label) {
+        Integer target = labels.get(label);
+        if (target == null) {
+            throw new CompilerException(method + ": undefined label " + label);
+        }
+        return target;
+    }
+
+    private static void flow(String method, int[] depths, Deque<Integer> work, int index, int depth) {
+        if (depths[index] == -1) {
+            depths[index] = depth;
+            work.push(index);
+        } else if (depths[index] != depth) {
+            throw new CompilerException(method + ": stack depth " + depths[index] + " and " + depth
+                    + " meet at instruction " + index);
+        }
+    }
+}
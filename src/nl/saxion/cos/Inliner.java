@@ -0,0 +1,179 @@
+package nl.saxion.cos;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces calls to small methods by the code of the method itself, so the call and return are
+ * gone.
+ *
+ * A method is inlined when it has at most the given number of instructions, doesn't call itself,
+ * has no exception handlers and only returns at its last instruction, which is what the
+ * CodeGenerator makes of an objective that ends with a give. At the call site the arguments are on
+ * the stack, so they are stored in fresh local variables after the ones the caller uses, and the
+ * code of the method is copied with its local variables moved to those slots and its labels renamed.
+ * The value the method gives is then on the stack, just like after the call.
+ *
+ * The inlined methods are kept, and calls inside the copied code are not inlined again.
+ */
+public class Inliner {
+    private final int budget;
+    private final List<String> report = new ArrayList<>();
+    private int inlinedCalls = 0;
+    private int copies = 0;
+
+    /**
+     * @param budget  The largest number of instructions a method may have to be inlined, not
+     *                counting its return.
+     */
+    public Inliner(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Inlines the calls to small methods in the bodies of the methods.
+     */
+    void inline(JasminMethods code) {
+        String owner = code.getOwner() + "/";
+
+        Map<String, List<String>> inlinable = new HashMap<>();
+        for (JasminMethods.Method method : code.getMethods()) {
+            if (isInlinable(owner + method.getName(), method.getBody())) {
+                // A copy, as calls in the body itself may still be inlined below
+                inlinable.put(owner + method.getName(), new ArrayList<>(method.getBody()));
+            }
+        }
+
+        for (JasminMethods.Method method : code.getMethods()) {
+            List<String> body = method.getBody();
+
+            // The inlined code of every call uses the same slots, as calls never overlap
+            int firstSlot = FrameLimits.maxLocals(method.getDescriptor(), body);
+            Map<String, Integer> inlined = new LinkedHashMap<>();
+            List<String> result = new ArrayList<>();
+            for (String bodyLine : body) {
+                List<String> callee = null;
+                if (Instructions.mnemonic(bodyLine).equals("invokestatic")) {
+                    callee = inlinable.get(Instructions.operand(bodyLine));
+                }
+                if (callee == null) {
+                    result.add(bodyLine);
+                    continue;
+                }
+                String calleeMethod = Instructions.operand(bodyLine).substring(owner.length());
+                result.addAll(copy(calleeMethod, callee, firstSlot));
+                inlined.merge(calleeMethod, 1, Integer::sum);
+            }
+            if (inlined.isEmpty()) {
+                continue;
+            }
+            body.clear();
+            body.addAll(result);
+
+            for (Map.Entry<String, Integer> entry : inlined.entrySet()) {
+                inlinedCalls += entry.getValue();
+                report.add("inline " + method.getName() + ": inlined " + entry.getValue() + " calls to " + entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return  For every method with inlined calls, how many calls to which method were inlined.
+     */
+    public List<String> getReport() {
+        return report;
+    }
+
+    public int getInlinedCalls() {
+        return inlinedCalls;
+    }
+
+    private boolean isInlinable(String method, List<String> body) {
+        List<String> instructions = new ArrayList<>();
+        for (String line : body) {
+            if (line.startsWith(".catch")) {
+                return false;
+            }
+            if (Instructions.isInstruction(line)) {
+                instructions.add(line);
+            }
+        }
+        if (instructions.isEmpty() || instructions.size() - 1 > budget) {
+            return false;
+        }
+
+        for (int i = 0; i < instructions.size(); i++) {
+            String instruction = instructions.get(i);
+            boolean isReturn = Instructions.mnemonic(instruction).endsWith("return");
+            if (isReturn != (i == instructions.size() - 1)) {
+                return false;
+            }
+            if (instruction.equals("invokestatic " + method)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return  The code that replaces a call to the method: storing the arguments that are on the
+     *          stack, then the body of the method without its return.
+     */
+    private List<String> copy(String method, List<String> body, int firstSlot) {
+        List<String> code = new ArrayList<>();
+
+        // The last argument is on top of the stack, so it is stored first
+        List<String> stores = new ArrayList<>();
+        String descriptor = method.substring(method.indexOf('('));
+        int slot = firstSlot;
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            char type = descriptor.charAt(i);
+            String store = type == 'D' ? "dstore " : type == 'J' ? "lstore " : type == 'F' ? "fstore "
+                    : type == 'L' || type == '[' ? "astore " : "istore ";
+            stores.add(0, store + slot);
+            slot += Instructions.size(type);
+            while (descriptor.charAt(i) == '[') {
+                i++;
+            }
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+        }
+        code.addAll(stores);
+
+        copies++;
+        for (String line : body) {
+            if (Instructions.isLabel(line)) {
+                code.add(rename(Instructions.labelName(line)) + ":");
+            } else if (!Instructions.isInstruction(line) || Instructions.mnemonic(line).endsWith("return")) {
+                // Directives belong to the method, and the return is where the call was
+                continue;
+            } else if (Instructions.isBranch(Instructions.mnemonic(line))) {
+                code.add(Instructions.mnemonic(line) + " " + rename(Instructions.operand(line)));
+            } else if (Instructions.localVariable(line) >= 0) {
+                code.add(moveLocal(line, firstSlot));
+            } else {
+                code.add(line);
+            }
+        }
+        return code;
+    }
+
+    private String rename(String label) {
+        return label + "_" + copies;
+    }
+
+    private static String moveLocal(String instruction, int firstSlot) {
+        String mnemonic = Instructions.mnemonic(instruction);
+        int variable = Instructions.localVariable(instruction) + firstSlot;
+        if (mnemonic.equals("iinc")) {
+            return "iinc " + variable + " " + Instructions.operand(instruction).split("\\s+")[1];
+        }
+        // iload_1 becomes iload <slot>
+        int underscore = mnemonic.indexOf('_');
+        return (underscore < 0 ? mnemonic : mnemonic.substring(0, underscore)) + " " + variable;
+    }
+}
@@ -0,0 +1,324 @@
+package nl.saxion.cos;
+
+/**
+ * Knowledge about single lines of Jasmin code, for the passes that work on generated code: what kind
+ * of line it is, where it may jump to and what it does to the operand stack and local variables.
+ */
+final class Instructions {
+    private Instructions() {
+    }
+
+    static boolean isLabel(String line) {
+        return line.endsWith(":") && line.indexOf(' ') < 0 && !line.startsWith(".");
+    }
+
+    static String labelName(String line) {
+        return line.substring(0, line.length() - 1);
+    }
+
+    static boolean isDirective(String line) {
+        return line.startsWith(".");
+    }
+
+    /**
+     * @return  Whether the line is an instruction, as opposed to an empty line, a comment, a label
+     *          or a directive.
+     */
+    static boolean isInstruction(String line) {
+        return !line.isEmpty() && !line.startsWith(";") && !isDirective(line) && !isLabel(line);
+    }
+
+    static String mnemonic(String instruction) {
+        int space = instruction.indexOf(' ');
+        return space < 0 ? instruction : instruction.substring(0, space);
+    }
+
+    static String operand(String instruction) {
+        int space = instruction.indexOf(' ');
+        return space < 0 ? "" : instruction.substring(space + 1).trim();
+    }
+
+    /**
+     * @return  Whether the instruction jumps to the label in its operand, conditionally or not.
+     */
+    static boolean isBranch(String mnemonic) {
+        return mnemonic.startsWith("if") || mnemonic.equals("goto") || mnemonic.equals("goto_w");
+    }
+
+    static boolean isConditionalBranch(String mnemonic) {
+        return mnemonic.startsWith("if");
+    }
+
+    /**
+     * @return  Whether execution never continues with the next instruction.
+     */
+    static boolean endsFlow(String mnemonic) {
+        switch (mnemonic) {
+            case "goto":
+            case "goto_w":
+            case "return":
+            case "ireturn":
+            case "lreturn":
+            case "freturn":
+            case "dreturn":
+            case "areturn":
+            case "athrow":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return  The value an instruction pushes if it pushes an int constant, or null.
+     */
+    static Integer intConstant(String instruction) {
+        String mnemonic = mnemonic(instruction);
+        String operand = operand(instruction);
+        try {
+            switch (mnemonic) {
+                case "iconst_m1":
+                    return -1;
+                case "iconst_0": case "iconst_1": case "iconst_2": case "iconst_3": case "iconst_4": case "iconst_5":
+                    return mnemonic.charAt(7) - '0';
+                case "bipush":
+                case "sipush":
+                    return Integer.parseInt(operand);
+                case "ldc":
+                case "ldc_w":
+                    return Integer.parseInt(operand);
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            // A string or float constant
+            return null;
+        }
+    }
+
+    /**
+     * @return  The shortest instruction that pushes the given int: iconst_ takes one byte, bipush
+     *          two and sipush three. Anything larger goes through the constant pool.
+     */
+    static String pushInt(int value) {
+        if (value == -1) {
+            return "iconst_m1";
+        } else if (value >= 0 && value <= 5) {
+            return "iconst_" + value;
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return "bipush " + value;
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return "sipush " + value;
+        }
+        return "ldc " + value;
+    }
+
+    /**
+     * @return  The number of stack slots a value with the given type descriptor takes.
+     */
+    static int size(char descriptor) {
+        switch (descriptor) {
+            case 'V':
+                return 0;
+            case 'J':
+            case 'D':
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * @return  The number of local variable slots taken by the arguments of a method descriptor,
+     *          e.g. "(ID)V" takes 3.
+     */
+    static int argumentSize(String descriptor) {
+        int size = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            size += size(c);
+            while (descriptor.charAt(i) == '[') {
+                i++;
+            }
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            i++;
+        }
+        return size;
+    }
+
+    /**
+     * @return  The number of stack slots taken by the return value of a method descriptor.
+     */
+    static int returnSize(String descriptor) {
+        return size(descriptor.charAt(descriptor.indexOf(')') + 1));
+    }
+
+    /**
+     * @return  The local variable an instruction loads, stores or increments, or -1 if it doesn't
+     *          use a local variable.
+     */
+    static int localVariable(String instruction) {
+        String mnemonic = mnemonic(instruction);
+        if (mnemonic.equals("iinc")) {
+            return Integer.parseInt(operand(instruction).split("\\s+")[0]);
+        }
+        if (!isLocalAccess(mnemonic)) {
+            return -1;
+        }
+        int underscore = mnemonic.indexOf('_');
+        return underscore < 0 ? Integer.parseInt(operand(instruction)) : mnemonic.charAt(underscore + 1) - '0';
+    }
+
+    /**
+     * @return  The number of slots used by the local variable of a load or store, 2 for doubles and
+     *          longs.
+     */
+    static int localVariableSize(String instruction) {
+        char type = instruction.charAt(0);
+        return type == 'd' || type == 'l' ? 2 : 1;
+    }
+
+    private static boolean isLocalAccess(String mnemonic) {
+        if (mnemonic.length() < 5 || "ilfda".indexOf(mnemonic.charAt(0)) < 0) {
+            return false;
+        }
+        String kind = mnemonic.substring(1);
+        return kind.startsWith("load") || kind.startsWith("store");
+    }
+
+    /**
+     * @return  How many slots the instruction adds to the operand stack; negative if it removes
+     *          more than it adds.
+     */
+    static int stackEffect(String instruction) {
+        String mnemonic = mnemonic(instruction);
+        switch (mnemonic) {
+            case "nop":
+            case "iinc":
+            case "ineg":
+            case "fneg":
+            case "lneg":
+            case "dneg":
+            case "i2f":
+            case "l2d":
+            case "f2i":
+            case "d2l":
+            case "i2b":
+            case "i2c":
+            case "i2s":
+            case "swap":
+            case "goto":
+            case "goto_w":
+            case "return":
+            case "newarray":
+            case "anewarray":
+            case "arraylength":
+            case "checkcast":
+            case "instanceof":
+            case "laload":
+            case "daload":
+                return 0;
+
+            case "aconst_null":
+            case "iconst_m1":
+            case "iconst_0":
+            case "iconst_1":
+            case "iconst_2":
+            case "iconst_3":
+            case "iconst_4":
+            case "iconst_5":
+            case "fconst_0":
+            case "fconst_1":
+            case "fconst_2":
+            case "bipush":
+            case "sipush":
+            case "ldc":
+            case "ldc_w":
+            case "dup":
+            case "dup_x1":
+            case "dup_x2":
+            case "i2l":
+            case "i2d":
+            case "f2l":
+            case "f2d":
+            case "new":
+                return 1;
+
+            case "lconst_0":
+            case "lconst_1":
+            case "dconst_0":
+            case "dconst_1":
+            case "ldc2_w":
+            case "dup2":
+            case "dup2_x1":
+            case "dup2_x2":
+                return 2;
+
+            case "iadd": case "isub": case "imul": case "idiv": case "irem":
+            case "ishl": case "ishr": case "iushr": case "iand": case "ior": case "ixor":
+            case "fadd": case "fsub": case "fmul": case "fdiv": case "frem":
+            case "lshl": case "lshr": case "lushr":
+            case "iaload": case "faload": case "aaload": case "baload": case "caload": case "saload":
+            case "l2i": case "l2f": case "d2i": case "d2f":
+            case "fcmpl": case "fcmpg":
+            case "ifeq": case "ifne": case "iflt": case "ifge": case "ifgt": case "ifle":
+            case "ifnull": case "ifnonnull":
+            case "pop":
+            case "ireturn": case "freturn": case "areturn": case "athrow":
+            case "monitorenter": case "monitorexit":
+                return -1;
+
+            case "ladd": case "lsub": case "lmul": case "ldiv": case "lrem":
+            case "land": case "lor": case "lxor":
+            case "dadd": case "dsub": case "dmul": case "ddiv": case "drem":
+            case "if_icmpeq": case "if_icmpne": case "if_icmplt": case "if_icmpge": case "if_icmpgt": case "if_icmple":
+            case "if_acmpeq": case "if_acmpne":
+            case "pop2":
+            case "lreturn": case "dreturn":
+                return -2;
+
+            case "lcmp":
+            case "dcmpl":
+            case "dcmpg":
+            case "iastore": case "fastore": case "aastore": case "bastore": case "castore": case "sastore":
+                return -3;
+
+            case "lastore":
+            case "dastore":
+                return -4;
+
+            case "getstatic":
+                return size(fieldDescriptor(instruction));
+            case "putstatic":
+                return -size(fieldDescriptor(instruction));
+            case "getfield":
+                return size(fieldDescriptor(instruction)) - 1;
+            case "putfield":
+                return -size(fieldDescriptor(instruction)) - 1;
+
+            case "invokestatic":
+            case "invokevirtual":
+            case "invokespecial": {
+                String operand = operand(instruction);
+                String descriptor = operand.substring(operand.indexOf('('));
+                int receiver = mnemonic.equals("invokestatic") ? 0 : 1;
+                return returnSize(descriptor) - argumentSize(descriptor) - receiver;
+            }
+
+            default:
+                if (isLocalAccess(mnemonic)) {
+                    int size = localVariableSize(mnemonic);
+                    return mnemonic.substring(1).startsWith("load") ? size : -size;
+                }
+                throw new IllegalArgumentException("Unknown instruction: " + instruction);
+        }
+    }
+
+    private static char fieldDescriptor(String instruction) {
+        String[] parts = operand(instruction).split("\\s+");
+        return parts[1].charAt(0);
+    }
+}
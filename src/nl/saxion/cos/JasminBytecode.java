@@ -1,12 +1,23 @@
 package nl.saxion.cos;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class JasminBytecode {
-    /** After successful compilation, this contains all Jasmin commands. */
-    private ArrayList<String> jasminCode;
+    /**
+     * After successful compilation, this contains all Jasmin commands, one per line. All lines
+     * are emitted straight into this single buffer, which is handed to the assembler and written
+     * to files without being copied.
+     */
+    private StringBuilder jasminCode;
+
+    /** The number of lines in jasminCode. */
+    private int lineCount;
 
     /** Name of the compiled class */
     private String className;
@@ -16,7 +27,7 @@ public class JasminBytecode {
      */
     public JasminBytecode( String className ) {
         this.className = className;
-        this.jasminCode = new ArrayList<>();
+        this.jasminCode = new StringBuilder(4096);
     }
 
     /**
@@ -28,8 +39,26 @@ public class JasminBytecode {
      * @param jasminCode  A list of Jasmin instructions.
      */
     public JasminBytecode(String className, ArrayList<String> jasminCode ) {
-        this.className = className;
-        this.jasminCode = jasminCode;
+        this(className);
+        for( String line : jasminCode )
+            add(line);
+    }
+
+    /**
+     * Create an instance from Jasmin code in text form, e.g. read back from a .j file.
+     *
+     * @param className   The name of the class that was compiled.
+     * @param jasminCode  Jasmin instructions, one per line.
+     */
+    public JasminBytecode(String className, CharSequence jasminCode ) {
+        this(className);
+        this.jasminCode.append(jasminCode);
+        if( this.jasminCode.length() > 0 && this.jasminCode.charAt(this.jasminCode.length() - 1) != '\n' )
+            this.jasminCode.append('\n');
+        for( int i = 0; i < this.jasminCode.length(); i++ ) {
+            if( this.jasminCode.charAt(i) == '\n' )
+                lineCount++;
+        }
     }
 
     /**
@@ -51,7 +80,8 @@ public class JasminBytecode {
      *              </pre>
      */
     public JasminBytecode add( String line ) {
-        jasminCode.add(line);
+        jasminCode.append(line).append('\n');
+        lineCount++;
         return this;
     }
 
@@ -64,17 +94,82 @@ public class JasminBytecode {
      *                         security rights.
      */
     public void writeJasminToFile( String jasminFileName ) throws IOException {
-        PrintWriter jasminOut = new PrintWriter(new FileWriter(jasminFileName));
-        for( String line : jasminCode )
-            jasminOut.println(line);
-        jasminOut.close();
+        try( Writer jasminOut = Files.newBufferedWriter(Paths.get(jasminFileName), StandardCharsets.UTF_8) ) {
+            writeTo(jasminOut);
+        }
+    }
+
+    /**
+     * Write the jasmin byte code (in text form) to a writer, in chunks, without first turning
+     * it into one big String.
+     *
+     * @param out  The writer to write to. It is not closed.
+     * @throws IOException if writing failed
+     */
+    public void writeTo( Writer out ) throws IOException {
+        char[] chunk = new char[8192];
+        for( int start = 0; start < jasminCode.length(); start += chunk.length ) {
+            int end = Math.min(start + chunk.length, jasminCode.length());
+            jasminCode.getChars(start, end, chunk, 0);
+            out.write(chunk, 0, end - start);
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns a reader over the jasmin byte code. The reader reads straight from the buffer the
+     * code was emitted into, so nothing is copied; don't add lines while reading.
+     */
+    public Reader openReader() {
+        return new Reader() {
+            private int position = 0;
+
+            @Override
+            public int read() {
+                return position < jasminCode.length() ? jasminCode.charAt(position++) : -1;
+            }
+
+            @Override
+            public int read( char[] buffer, int offset, int length ) {
+                if( position >= jasminCode.length() )
+                    return -1;
+                int end = Math.min(position + length, jasminCode.length());
+                jasminCode.getChars(position, end, buffer, offset);
+                int read = end - position;
+                position = end;
+                return read;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
     }
 
     public String getClassName() {
         return className;
     }
 
-    public List<String> getLines() {
+    /**
+     * @return  The jasmin byte code in text form, one instruction per line. This is a view of
+     *          the buffer the code is emitted into, not a copy.
+     */
+    public CharSequence getText() {
         return jasminCode;
     }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Splits the jasmin byte code into separate lines. This copies all code, so prefer
+     * getText(), openReader() or writeTo() where possible.
+     */
+    public List<String> getLines() {
+        if( jasminCode.length() == 0 )
+            return new ArrayList<>();
+        // The buffer always ends with a newline, which must not produce an extra empty line
+        return Arrays.asList(jasminCode.substring(0, jasminCode.length() - 1).split("\n", -1));
+    }
 }
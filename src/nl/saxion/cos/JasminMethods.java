@@ -0,0 +1,115 @@
+package nl.saxion.cos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The generated code split into its methods, for the passes that work on generated code. The code
+ * is split once after it is generated, every pass changes the bodies of the methods in place, and
+ * the code is put back together once when all passes are done.
+ */
+final class JasminMethods {
+    /**
+     * A method of the generated code: its .method line and the trimmed lines up to .end method.
+     */
+    static final class Method {
+        private final String header;
+        private final List<String> body;
+
+        private Method(String header, List<String> body) {
+            this.header = header;
+            this.body = body;
+        }
+
+        /**
+         * @return  The name and descriptor of the method, like main([Ljava/lang/String;)V.
+         */
+        String getName() {
+            return header.substring(header.lastIndexOf(' ') + 1);
+        }
+
+        String getDescriptor() {
+            return header.substring(header.indexOf('('));
+        }
+
+        /**
+         * @return  The lines of the method, which passes may change.
+         */
+        List<String> getBody() {
+            return body;
+        }
+    }
+
+    private final String className;
+    private String owner = "";
+
+    /** All lines outside the bodies, including the .method and .end method lines. */
+    private final List<String> lines = new ArrayList<>();
+
+    /** For every line in lines, the method whose body follows it, or null. */
+    private final List<Method> bodyAfter = new ArrayList<>();
+
+    private final List<Method> methods = new ArrayList<>();
+
+    private JasminMethods(String className) {
+        this.className = className;
+    }
+
+    static JasminMethods split(JasminBytecode code) {
+        List<String> lines = code.getLines();
+        JasminMethods result = new JasminMethods(code.getClassName());
+
+        int i = 0;
+        while (i < lines.size()) {
+            String line = lines.get(i).trim();
+            result.lines.add(lines.get(i));
+            i++;
+            if (line.startsWith(".class")) {
+                // Calls name the class of the .class directive
+                result.owner = line.substring(line.lastIndexOf(' ') + 1);
+            }
+            if (!line.startsWith(".method")) {
+                result.bodyAfter.add(null);
+                continue;
+            }
+
+            List<String> body = new ArrayList<>();
+            while (i < lines.size() && !lines.get(i).trim().startsWith(".end method")) {
+                body.add(lines.get(i).trim());
+                i++;
+            }
+            Method method = new Method(line, body);
+            result.bodyAfter.add(method);
+            result.methods.add(method);
+        }
+        return result;
+    }
+
+    /**
+     * @return  The name of the class in the .class directive, which calls to its methods start with.
+     */
+    String getOwner() {
+        return owner;
+    }
+
+    List<Method> getMethods() {
+        return methods;
+    }
+
+    /**
+     * @return  The code with the bodies as they are now.
+     */
+    JasminBytecode toBytecode() {
+        JasminBytecode result = new JasminBytecode(className);
+        for (int i = 0; i < lines.size(); i++) {
+            result.add(lines.get(i));
+            Method method = bodyAfter.get(i);
+            if (method != null) {
+                for (String line : method.body) {
+                    result.add(line);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,202 @@
+package nl.saxion.cos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Locale;
+
+/**
+ * A compiled program that is loaded once and can then be run any number of times, also from many
+ * threads at the same time. The class is defined and its main method looked up only in load(); a
+ * run is a single call through a MethodHandle, so the generated code gets compiled by the JIT just
+ * like any other hot code.
+ *
+ * The output of every run is captured separately. The generated code prints to System.out, so
+ * load() replaces System.out by a stream that sends everything a thread prints during run() to the
+ * buffer of that run. Everything printed outside of run() still goes to the original System.out.
+ * Don't replace System.out yourself while programs are running.
+ *
+ * The classes are in the unnamed package, so they can't be defined as hidden classes, which must be
+ * in the package of the Lookup that defines them. Each program gets its own class loader instead,
+ * and is unloaded together with it once the LoadedProgram is no longer used.
+ */
+public class LoadedProgram {
+	private static final MethodType MAIN_TYPE = MethodType.methodType(void.class, String[].class);
+
+	private static final Object installLock = new Object();
+
+	private final MethodHandle main;
+	private final String className;
+	private final RoutingPrintStream out;
+
+	private LoadedProgram( MethodHandle main, String className, RoutingPrintStream out ) {
+		this.main = main;
+		this.className = className;
+		this.out = out;
+	}
+
+	/**
+	 * Defines the class of an assembled program and looks up its main method.
+	 *
+	 * @param assembledClass  The program to load.
+	 * @throws IllegalArgumentException if the class has no public static void main(String[])
+	 * @throws LinkageError if the class is not valid, e.g. a VerifyError
+	 */
+	public static LoadedProgram load( AssembledClass assembledClass ) {
+		RoutingPrintStream out = installRoutingOut();
+
+		ProgramClassLoader classLoader = new ProgramClassLoader(LoadedProgram.class.getClassLoader());
+		Class<?> programClass = classLoader.define(assembledClass.getClassBytes());
+		try {
+			MethodHandle main = MethodHandles.publicLookup().findStatic(programClass, "main", MAIN_TYPE);
+			return new LoadedProgram(main, assembledClass.getClassName(), out);
+		} catch( NoSuchMethodException | IllegalAccessException e ) {
+			// Looking up main links the class, so this is also where a VerifyError shows up
+			if( e.getCause() instanceof LinkageError )
+				throw (LinkageError) e.getCause();
+			throw new IllegalArgumentException("Class file has no main", e);
+		}
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * Runs the main method of the program and returns everything it printed.
+	 *
+	 * @param args  The command line arguments to pass to main.
+	 * @return      The output of this run only.
+	 * @throws RuntimeException or Error when the program throws one
+	 */
+	public String run( String... args ) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		run(output, args);
+		return output.toString();
+	}
+
+	/**
+	 * Runs the main method of the program and writes everything it prints to the given stream.
+	 *
+	 * @param output  Receives the output of this run only. Written to from the calling thread.
+	 * @param args    The command line arguments to pass to main.
+	 * @throws RuntimeException or Error when the program throws one
+	 */
+	public void run( OutputStream output, String... args ) {
+		PrintStream previous = out.capture(new PrintStream(output, false));
+		try {
+			main.invokeExact(args);
+		} catch( RuntimeException | Error e ) {
+			throw e;
+		} catch( Throwable t ) {
+			// Generated code declares no exceptions, but the JVM doesn't enforce that
+			throw new IllegalStateException(t);
+		} finally {
+			out.release(previous);
+		}
+	}
+
+	/**
+	 * Returns the RoutingPrintStream that is System.out, after installing it if needed.
+	 */
+	private static RoutingPrintStream installRoutingOut() {
+		synchronized( installLock ) {
+			if( System.out instanceof RoutingPrintStream )
+				return (RoutingPrintStream) System.out;
+			RoutingPrintStream out = new RoutingPrintStream(System.out);
+			System.setOut(out);
+			return out;
+		}
+	}
+
+	/**
+	 * Defines the class of a single program.
+	 */
+	private static class ProgramClassLoader extends ClassLoader {
+		ProgramClassLoader( ClassLoader parent ) {
+			super(parent);
+		}
+
+		Class<?> define( byte[] classBytes ) {
+			// Take the name from the class file itself, it may differ from the name it was compiled as
+			return defineClass(null, classBytes, 0, classBytes.length);
+		}
+	}
+
+	/**
+	 * Replaces System.out. Everything is printed to the stream of the current run on this thread,
+	 * or to the original System.out if this thread is not running a program. Threads never share a
+	 * run's stream, so printing needs no locking besides what the original System.out does.
+	 */
+	private static class RoutingPrintStream extends PrintStream {
+		private final PrintStream original;
+		private final ThreadLocal<PrintStream> current = new ThreadLocal<>();
+
+		RoutingPrintStream( PrintStream original ) {
+			super(original, true);
+			this.original = original;
+		}
+
+		/**
+		 * Sends the output of this thread to the given stream and returns the stream it replaced, if
+		 * a program runs another one.
+		 */
+		PrintStream capture( PrintStream stream ) {
+			PrintStream previous = current.get();
+			current.set(stream);
+			return previous;
+		}
+
+		void release( PrintStream previous ) {
+			current.get().flush();
+			if( previous == null )
+				current.remove();
+			else
+				current.set(previous);
+		}
+
+		private PrintStream target() {
+			PrintStream stream = current.get();
+			return stream != null ? stream : original;
+		}
+
+		@Override public void write( int b ) { target().write(b); }
+		@Override public void write( byte[] buf, int off, int len ) { target().write(buf, off, len); }
+		@Override public void write( byte[] buf ) throws IOException { target().write(buf); }
+		@Override public void writeBytes( byte[] buf ) { target().writeBytes(buf); }
+		@Override public void flush() { target().flush(); }
+		@Override public void close() { target().close(); }
+		@Override public boolean checkError() { return target().checkError(); }
+
+		@Override public void print( boolean b ) { target().print(b); }
+		@Override public void print( char c ) { target().print(c); }
+		@Override public void print( int i ) { target().print(i); }
+		@Override public void print( long l ) { target().print(l); }
+		@Override public void print( float f ) { target().print(f); }
+		@Override public void print( double d ) { target().print(d); }
+		@Override public void print( char[] s ) { target().print(s); }
+		@Override public void print( String s ) { target().print(s); }
+		@Override public void print( Object obj ) { target().print(obj); }
+
+		@Override public void println() { target().println(); }
+		@Override public void println( boolean x ) { target().println(x); }
+		@Override public void println( char x ) { target().println(x); }
+		@Override public void println( int x ) { target().println(x); }
+		@Override public void println( long x ) { target().println(x); }
+		@Override public void println( float x ) { target().println(x); }
+		@Override public void println( double x ) { target().println(x); }
+		@Override public void println( char[] x ) { target().println(x); }
+		@Override public void println( String x ) { target().println(x); }
+		@Override public void println( Object x ) { target().println(x); }
+
+		@Override public PrintStream format( String format, Object... args ) { return target().format(format, args); }
+		@Override public PrintStream format( Locale l, String format, Object... args ) { return target().format(l, format, args); }
+		@Override public PrintStream append( CharSequence csq ) { return target().append(csq); }
+		@Override public PrintStream append( CharSequence csq, int start, int end ) { return target().append(csq, start, end); }
+		@Override public PrintStream append( char c ) { return target().append(c); }
+	}
+}
@@ -0,0 +1,298 @@
+package nl.saxion.cos;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the expressions inside meantime and fer loops that give the same value in every iteration,
+ * so the CodeGenerator can compute them once before the loop and keep the value in a local
+ * variable.
+ *
+ * An expression is loop invariant when it is arithmetic on literals, variables and array lengths
+ * that the loop doesn't change: no variableReDeclaration, ++ or -- inside the loop assigns them,
+ * and they aren't declared inside the loop. Array elements can change without that, so they never
+ * are. Only expressions that can't fail are moved, because the value is computed even if the loop
+ * body never runs: int division only by a non-zero constant. Method calls are never moved.
+ *
+ * The largest invariant expressions are moved to the outermost loop they are invariant in. Every
+ * moved expression gets a local variable slot of its own, after the slots of the variables of the
+ * method. The slots are only in use while the loop runs, so the next loop uses them again.
+ */
+public class LoopInvariants extends Pirate_CalligraphyBaseVisitor<Void> {
+    private final ParseTreeProperty<DataType> types;
+    private final ParseTreeProperty<Symbol> symbols;
+    private final ParseTreeProperty<Object> constants;
+
+    /** The expressions that are computed before every loop, keyed by the loop. */
+    private final ParseTreeProperty<List<ParseTree>> hoisted = new ParseTreeProperty<>();
+    /** The local variable slot that holds the value of every moved expression. */
+    private final ParseTreeProperty<Integer> slots = new ParseTreeProperty<>();
+
+    private final List<String> report = new ArrayList<>();
+    private int hoistedExpressions = 0;
+
+    private int nextFreeSlot;
+    private int hoistedInMethod;
+
+    public LoopInvariants(ParseTreeProperty<DataType> types, ParseTreeProperty<Symbol> symbols,
+                          ParseTreeProperty<Object> constants) {
+        this.types = types;
+        this.symbols = symbols;
+        this.constants = constants;
+    }
+
+    /**
+     * @return  The expressions to compute before the given while or for statement, in order.
+     */
+    public List<ParseTree> getHoisted(ParseTree loop) {
+        List<ParseTree> expressions = hoisted.get(loop);
+        return expressions == null ? List.of() : expressions;
+    }
+
+    /**
+     * @return  The local variable that holds the value of a moved expression, or null if the
+     *          expression was not moved.
+     */
+    public Integer getSlot(ParseTree expression) {
+        return slots.get(expression);
+    }
+
+    /**
+     * @return  For every method with loop invariant expressions, how many were moved.
+     */
+    public List<String> getReport() {
+        return report;
+    }
+
+    public int getHoistedExpressions() {
+        return hoistedExpressions;
+    }
+
+    @Override
+    public Void visitStart(Pirate_CalligraphyParser.StartContext ctx) {
+        for (var method : ctx.methodDeclarationStatement()) {
+            visit(method);
+        }
+
+        // The String[] args of main takes slot 0
+        nextFreeSlot = Math.max(1, usedSlots(ctx.statement()));
+        hoistedInMethod = 0;
+        for (var statement : ctx.statement()) {
+            visit(statement);
+        }
+        addToReport("main");
+        return null;
+    }
+
+    @Override
+    public Void visitMethodDeclarationStatement(Pirate_CalligraphyParser.MethodDeclarationStatementContext ctx) {
+        nextFreeSlot = usedSlots(List.of(ctx));
+        hoistedInMethod = 0;
+        visitChildren(ctx);
+        addToReport(ctx.methodName.getText());
+        return null;
+    }
+
+    private void addToReport(String method) {
+        if (hoistedInMethod > 0) {
+            report.add("loop invariants " + method + ": moved " + hoistedInMethod + " expressions out of loops");
+        }
+    }
+
+    @Override
+    public Void visitWhileStatement(Pirate_CalligraphyParser.WhileStatementContext ctx) {
+        Set<Symbol> assigned = new HashSet<>();
+        findAssigned(ctx, assigned);
+
+        List<ParseTree> expressions = new ArrayList<>();
+        findInvariants(ctx.expression(), assigned, expressions);
+        for (var statement : ctx.statement()) {
+            findInvariants(statement, assigned, expressions);
+        }
+        int firstSlot = nextFreeSlot;
+        hoist(ctx, expressions);
+
+        // Loops inside this one can have invariants of their own
+        visitChildren(ctx);
+        nextFreeSlot = firstSlot;
+        return null;
+    }
+
+    @Override
+    public Void visitForStatement(Pirate_CalligraphyParser.ForStatementContext ctx) {
+        // The declaration runs once, before the loop
+        Set<Symbol> assigned = new HashSet<>();
+        findAssigned(ctx.compareStatement(), assigned);
+        findAssigned(ctx.exp, assigned);
+        for (var statement : ctx.statement()) {
+            findAssigned(statement, assigned);
+        }
+
+        List<ParseTree> expressions = new ArrayList<>();
+        findInvariants(ctx.compareStatement(), assigned, expressions);
+        for (var statement : ctx.statement()) {
+            findInvariants(statement, assigned, expressions);
+        }
+        findInvariants(ctx.exp, assigned, expressions);
+        int firstSlot = nextFreeSlot;
+        hoist(ctx, expressions);
+
+        visitChildren(ctx);
+        nextFreeSlot = firstSlot;
+        return null;
+    }
+
+    private void hoist(ParseTree loop, List<ParseTree> expressions) {
+        if (expressions.isEmpty()) {
+            return;
+        }
+        for (ParseTree expression : expressions) {
+            slots.put(expression, nextFreeSlot);
+            nextFreeSlot += Scope.slotSize(getType(expression));
+        }
+        hoisted.put(loop, expressions);
+        hoistedExpressions += expressions.size();
+        hoistedInMethod += expressions.size();
+    }
+
+    /**
+     * @return  The type of a moved expression, looking through parentheses.
+     */
+    public DataType getType(ParseTree expression) {
+        while (expression instanceof Pirate_CalligraphyParser.ParenthesesContext) {
+            expression = ((Pirate_CalligraphyParser.ParenthesesContext) expression).expression();
+        }
+        return types.get(expression);
+    }
+
+    /**
+     * @return  The first local variable slot after all variables declared in the given trees.
+     */
+    private int usedSlots(List<? extends ParseTree> trees) {
+        int used = 0;
+        for (ParseTree tree : trees) {
+            if (tree instanceof Pirate_CalligraphyParser.VariableDeclarationContext
+                    || tree instanceof Pirate_CalligraphyParser.ArrayDeclarationContext
+                    || tree instanceof Pirate_CalligraphyParser.ParameterContext) {
+                Symbol symbol = symbols.get(tree);
+                if (symbol != null) {
+                    used = Math.max(used, symbol.getIndex() + Scope.slotSize(symbol.getType()));
+                }
+            }
+            List<ParseTree> children = new ArrayList<>();
+            for (int i = 0; i < tree.getChildCount(); i++) {
+                children.add(tree.getChild(i));
+            }
+            used = Math.max(used, usedSlots(children));
+        }
+        return used;
+    }
+
+    /**
+     * Collects the variables that are assigned or declared anywhere in the tree.
+     */
+    private void findAssigned(ParseTree tree, Set<Symbol> assigned) {
+        if (tree == null) {
+            return;
+        }
+        if (tree instanceof Pirate_CalligraphyParser.VariableReDeclarationContext
+                || tree instanceof Pirate_CalligraphyParser.VariableDeclarationContext
+                || tree instanceof Pirate_CalligraphyParser.ArrayDeclarationContext
+                || tree instanceof Pirate_CalligraphyParser.AddOneContext
+                || tree instanceof Pirate_CalligraphyParser.SubstractOneContext) {
+            Symbol symbol = symbols.get(tree);
+            if (symbol != null) {
+                assigned.add(symbol);
+            }
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            findAssigned(tree.getChild(i), assigned);
+        }
+    }
+
+    /**
+     * Collects the largest invariant expressions in the tree that are worth computing only once.
+     */
+    private void findInvariants(ParseTree tree, Set<Symbol> assigned, List<ParseTree> expressions) {
+        if (tree == null || slots.get(tree) != null) {
+            // Already moved out of a loop around this one
+            return;
+        }
+        if (isComputation(tree) && isInvariant(tree, assigned)) {
+            expressions.add(tree);
+            return;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            findInvariants(tree.getChild(i), assigned, expressions);
+        }
+    }
+
+    /**
+     * Whether the tree is arithmetic that takes more than a single load.
+     */
+    private boolean isComputation(ParseTree tree) {
+        if (constants.get(tree) != null) {
+            return false;
+        }
+        if (tree instanceof Pirate_CalligraphyParser.ParenthesesContext) {
+            return isComputation(((Pirate_CalligraphyParser.ParenthesesContext) tree).expression());
+        }
+        DataType type = types.get(tree);
+        if (type != DataType.INT && type != DataType.DOUBLE) {
+            return false;
+        }
+        return tree instanceof Pirate_CalligraphyParser.AddContext
+                || tree instanceof Pirate_CalligraphyParser.SubstractContext
+                || tree instanceof Pirate_CalligraphyParser.MultiplyContext
+                || tree instanceof Pirate_CalligraphyParser.DivideContext
+                || tree instanceof Pirate_CalligraphyParser.ArrayLengthContext;
+    }
+
+    private boolean isInvariant(ParseTree tree, Set<Symbol> assigned) {
+        if (constants.get(tree) != null
+                || tree instanceof Pirate_CalligraphyParser.IntContext
+                || tree instanceof Pirate_CalligraphyParser.DoubleContext) {
+            return true;
+        }
+        if (tree instanceof Pirate_CalligraphyParser.VariableNameContext
+                || tree instanceof Pirate_CalligraphyParser.ArrayLengthContext) {
+            // The length of an array only changes when another array is assigned to the variable
+            Symbol symbol = symbols.get(tree);
+            return symbol != null && !assigned.contains(symbol);
+        }
+        if (tree instanceof Pirate_CalligraphyParser.ParenthesesContext) {
+            return isInvariant(((Pirate_CalligraphyParser.ParenthesesContext) tree).expression(), assigned);
+        }
+        if (tree instanceof Pirate_CalligraphyParser.DivideContext) {
+            var divide = (Pirate_CalligraphyParser.DivideContext) tree;
+            // An int division by zero throws, which must not happen before the loop runs
+            if (types.get(tree) != DataType.DOUBLE && !isNonZeroConstant(divide.right)) {
+                return false;
+            }
+            return isInvariant(divide.left, assigned) && isInvariant(divide.right, assigned);
+        }
+        if (tree instanceof Pirate_CalligraphyParser.AddContext
+                || tree instanceof Pirate_CalligraphyParser.SubstractContext
+                || tree instanceof Pirate_CalligraphyParser.MultiplyContext) {
+            return isInvariant(tree.getChild(0), assigned) && isInvariant(tree.getChild(2), assigned);
+        }
+        return false;
+    }
+
+    private boolean isNonZeroConstant(ParseTree tree) {
+        Object constant = constants.get(tree);
+        if (constant == null && tree instanceof Pirate_CalligraphyParser.IntContext) {
+            try {
+                constant = Integer.parseInt(tree.getText());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return constant instanceof Integer && (Integer) constant != 0;
+    }
+}
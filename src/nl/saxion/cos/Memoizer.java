@@ -0,0 +1,706 @@
+package nl.saxion.cos;
+
+import java.util.List;
+
+/**
+ * The code for stashed objectives, which remember the values they gave for the last arguments they
+ * were called with. A stashed objective f is generated as f$body, and f itself becomes a method that
+ * looks the arguments up in a cache and only calls f$body when they aren't in it.
+ *
+ * Every stashed objective has a cache of its own, in three static fields:
+ * <ul>
+ *     <li>f$keys holds the arguments of every entry. Objectives with at most two number parameters
+ *     pack them into a long, so looking them up takes no objects at all. For other objectives the
+ *     key is the rope itself, or a list of all arguments;</li>
+ *     <li>f$values holds the value of every entry, in an array of the type the objective gives;</li>
+ *     <li>f$table is an int[] with the hash table and the least recently used order of the entries,
+ *     and the numbers of hits and misses, laid out as described below.</li>
+ * </ul>
+ * The public method f$stats() gives the numbers of hits and misses and the number of entries in
+ * the cache, in an int[] of three, so they can be read without knowing this layout.
+ *
+ * When the cache is full, the entry that was used the longest ago makes room for the new one. The
+ * runtime that does this is generated into the class once, as memo$ methods, so the class still runs
+ * on its own. A $ can't be part of a name in the source code, so none of these clash with an
+ * objective.
+ *
+ * The class may be run from many threads at the same time, like by LoadedProgram, so the cache is
+ * locked while it is used. It is not locked while f$body runs.
+ */
+final class Memoizer {
+    // The layout of f$table: these slots, then the buckets, then ENTRY_SIZE slots for every entry
+    private static final int NEWEST = 0;
+    private static final int OLDEST = 1;
+    private static final int SIZE = 2;
+    private static final int HITS = 3;
+    private static final int MISSES = 4;
+    private static final int CAPACITY = 5;
+    private static final int MASK = 6;
+    private static final int BUCKETS = 7;
+
+    // An entry: the next entry + 1 in its bucket, the entries used just after and before it, its hash
+    private static final int NEXT = 0;
+    private static final int NEWER = 1;
+    private static final int OLDER = 2;
+    private static final int HASH = 3;
+    private static final int ENTRY_SIZE = 4;
+
+    private static final String TABLE = "[I";
+    private static final String ENTRY = "invokestatic main/memo$entry([II)I";
+
+    private Memoizer() {
+    }
+
+    /**
+     * @return  The name of the method with the code of the stashed objective itself.
+     */
+    static String bodyName(String method) {
+        return method + "$body";
+    }
+
+    static void addFields(JasminBytecode code, String method, List<DataType> parameters, DataType value) {
+        code.add(".field private static " + method + "$table " + TABLE);
+        code.add(".field private static " + method + "$keys " + keyArray(parameters));
+        code.add(".field private static " + method + "$values " + valueArray(value));
+    }
+
+    /**
+     * Adds the code that creates the cache to the static initializer.
+     *
+     * @param size  The largest number of entries in the cache.
+     */
+    static void addInitialization(JasminBytecode code, String method, List<DataType> parameters, DataType value,
+                                  int size) {
+        code.add(Instructions.pushInt(size));
+        code.add("invokestatic main/memo$new(I)[I");
+        code.add("putstatic main/" + method + "$table " + TABLE);
+
+        code.add(Instructions.pushInt(size));
+        code.add(isPacked(parameters) ? "newarray long" : "anewarray java/lang/Object");
+        code.add("putstatic main/" + method + "$keys " + keyArray(parameters));
+
+        code.add(Instructions.pushInt(size));
+        switch (value) {
+            case DOUBLE:
+                code.add("newarray double");
+                break;
+            case STRING:
+                code.add("anewarray java/lang/String");
+                break;
+            default:
+                code.add("newarray int");
+                break;
+        }
+        code.add("putstatic main/" + method + "$values " + valueArray(value));
+    }
+
+    /**
+     * Adds the method that replaces the stashed objective: it gives the cached value for the
+     * arguments, or calls the body and caches what it gives.
+     *
+     * @param privacy     The access of the objective, like "private".
+     * @param descriptor  The descriptor of the objective, like "(II)I".
+     */
+    static void addWrapper(JasminBytecode code, String privacy, String method, String descriptor,
+                           List<DataType> parameters, DataType value) {
+        boolean packed = isPacked(parameters);
+        String table = "getstatic main/" + method + "$table " + TABLE;
+        String keys = "getstatic main/" + method + "$keys " + keyArray(parameters);
+        String values = "getstatic main/" + method + "$values " + valueArray(value);
+        String keyType = packed ? "J" : "Ljava/lang/Object;";
+        String prefix = value == DataType.DOUBLE ? "d" : value == DataType.STRING ? "a" : "i";
+
+        int keySlot = 0;
+        for (DataType parameter : parameters) {
+            keySlot += Scope.slotSize(parameter);
+        }
+        int indexSlot = keySlot + (packed ? 2 : 1);
+        int valueSlot = indexSlot + 1;
+        String loadKey = (packed ? "lload " : "aload ") + keySlot;
+
+        code.add(".method " + privacy + " static " + method + descriptor);
+        addKey(code, parameters);
+        code.add((packed ? "lstore " : "astore ") + keySlot);
+
+        code.add(table);
+        code.add("monitorenter");
+        code.add(loadKey);
+        code.add(keys);
+        code.add(table);
+        code.add("invokestatic main/memo$find(" + keyType + keyArray(parameters) + TABLE + ")I");
+        code.add("dup");
+        code.add("istore " + indexSlot);
+        code.add("iflt Miss");
+        code.add(values);
+        code.add("iload " + indexSlot);
+        code.add(prefix + "aload");
+        code.add(prefix + "store " + valueSlot);
+        code.add(table);
+        code.add("monitorexit");
+        code.add(prefix + "load " + valueSlot);
+        code.add(prefix + "return");
+
+        // Other calls can use the cache while the body runs
+        code.add("Miss:");
+        code.add(table);
+        code.add("monitorexit");
+        int slot = 0;
+        for (DataType parameter : parameters) {
+            code.add(load(parameter) + slot);
+            slot += Scope.slotSize(parameter);
+        }
+        code.add("invokestatic main/" + bodyName(method) + descriptor);
+        code.add(prefix + "store " + valueSlot);
+
+        code.add(table);
+        code.add("monitorenter");
+        code.add(table);
+        code.add(loadKey);
+        code.add("invokestatic main/memo$hash(" + keyType + ")I");
+        code.add("invokestatic main/memo$add([II)I");
+        code.add("istore " + indexSlot);
+        code.add(keys);
+        code.add("iload " + indexSlot);
+        code.add(loadKey);
+        code.add(packed ? "lastore" : "aastore");
+        code.add(values);
+        code.add("iload " + indexSlot);
+        code.add(prefix + "load " + valueSlot);
+        code.add(prefix + "astore");
+        code.add(table);
+        code.add("monitorexit");
+        code.add(prefix + "load " + valueSlot);
+        code.add(prefix + "return");
+        code.add(".end method");
+        code.add("");
+
+        addStats(code, method);
+    }
+
+    /**
+     * Adds f$stats(), which gives the hits, misses and size of the cache of the objective.
+     */
+    private static void addStats(JasminBytecode code, String method) {
+        String table = "getstatic main/" + method + "$table " + TABLE;
+        int[] counters = {HITS, MISSES, SIZE};
+
+        code.add(".method public static " + method + "$stats()[I");
+        code.add(table);
+        code.add("monitorenter");
+        code.add(Instructions.pushInt(counters.length));
+        code.add("newarray int");
+        code.add("astore 0");
+        for (int i = 0; i < counters.length; i++) {
+            code.add("aload 0");
+            code.add(Instructions.pushInt(i));
+            code.add(table);
+            code.add(Instructions.pushInt(counters[i]));
+            code.add("iaload");
+            code.add("iastore");
+        }
+        code.add(table);
+        code.add("monitorexit");
+        code.add("aload 0");
+        code.add("areturn");
+        code.add(".end method");
+        code.add("");
+    }
+
+    /**
+     * Whether the arguments are packed into a long: at most two numbers.
+     */
+    private static boolean isPacked(List<DataType> parameters) {
+        return parameters.size() <= 2 && parameters.stream().allMatch(parameter -> parameter == DataType.INT);
+    }
+
+    private static String keyArray(List<DataType> parameters) {
+        return isPacked(parameters) ? "[J" : "[Ljava/lang/Object;";
+    }
+
+    private static String valueArray(DataType value) {
+        switch (value) {
+            case DOUBLE:
+                return "[D";
+            case STRING:
+                return "[Ljava/lang/String;";
+            default:
+                return "[I";
+        }
+    }
+
+    private static String load(DataType type) {
+        return type == DataType.DOUBLE ? "dload " : type == DataType.STRING ? "aload " : "iload ";
+    }
+
+    /**
+     * Pushes the key of the arguments.
+     */
+    private static void addKey(JasminBytecode code, List<DataType> parameters) {
+        if (isPacked(parameters)) {
+            if (parameters.isEmpty()) {
+                code.add("lconst_0");
+                return;
+            }
+            code.add("iload 0");
+            code.add("i2l");
+            if (parameters.size() == 2) {
+                // The first number in the high half, the second in the low half without its sign
+                code.add("bipush 32");
+                code.add("lshl");
+                code.add("iload 1");
+                code.add("i2l");
+                code.add("bipush 32");
+                code.add("lshl");
+                code.add("bipush 32");
+                code.add("lushr");
+                code.add("lor");
+            }
+            return;
+        }
+
+        if (parameters.size() == 1 && parameters.get(0) == DataType.STRING) {
+            code.add("aload 0");
+            return;
+        }
+
+        // A list is equal to another list with equal elements
+        code.add(Instructions.pushInt(parameters.size()));
+        code.add("anewarray java/lang/Object");
+        int slot = 0;
+        for (int i = 0; i < parameters.size(); i++) {
+            DataType parameter = parameters.get(i);
+            code.add("dup");
+            code.add(Instructions.pushInt(i));
+            code.add(load(parameter) + slot);
+            if (parameter == DataType.INT) {
+                code.add("invokestatic java/lang/Integer/valueOf(I)Ljava/lang/Integer;");
+            } else if (parameter == DataType.DOUBLE) {
+                code.add("invokestatic java/lang/Double/valueOf(D)Ljava/lang/Double;");
+            }
+            code.add("aastore");
+            slot += Scope.slotSize(parameter);
+        }
+        code.add("invokestatic java/util/Arrays/asList([Ljava/lang/Object;)Ljava/util/List;");
+    }
+
+    /**
+     * Adds the memo$ methods that every cache uses.
+     */
+    static void addRuntime(JasminBytecode code) {
+        // memo$new(capacity): the table for a cache with room for that many entries, with twice as
+        // many buckets, rounded up to a power of two
+        code.add(".method private static memo$new(I)[I");
+        code.add("iconst_1");
+        code.add("istore 1");
+        code.add("Grow:");
+        code.add("iload 1");
+        code.add("iload 0");
+        code.add("iconst_1");
+        code.add("ishl");
+        code.add("if_icmpge Done");
+        code.add("iload 1");
+        code.add("iconst_1");
+        code.add("ishl");
+        code.add("istore 1");
+        code.add("goto Grow");
+        code.add("Done:");
+        code.add(Instructions.pushInt(BUCKETS));
+        code.add("iload 1");
+        code.add("iadd");
+        code.add("iload 0");
+        code.add(Instructions.pushInt(ENTRY_SIZE));
+        code.add("imul");
+        code.add("iadd");
+        code.add("newarray int");
+        code.add("astore 2");
+        setSlot(code, 2, NEWEST, "iconst_m1");
+        setSlot(code, 2, OLDEST, "iconst_m1");
+        setSlot(code, 2, CAPACITY, "iload 0");
+        code.add("aload 2");
+        code.add(Instructions.pushInt(MASK));
+        code.add("iload 1");
+        code.add("iconst_1");
+        code.add("isub");
+        code.add("iastore");
+        code.add("aload 2");
+        code.add("areturn");
+        code.add(".end method");
+        code.add("");
+
+        // memo$hash(key): the hash code, with the high bits mixed into the low bits that pick the bucket
+        code.add(".method private static memo$hash(J)I");
+        code.add("lload 0");
+        code.add("lload 0");
+        code.add("bipush 32");
+        code.add("lushr");
+        code.add("lxor");
+        code.add("l2i");
+        addSpread(code);
+        code.add(".end method");
+        code.add("");
+
+        code.add(".method private static memo$hash(Ljava/lang/Object;)I");
+        code.add("aload 0");
+        code.add("invokevirtual java/lang/Object/hashCode()I");
+        addSpread(code);
+        code.add(".end method");
+        code.add("");
+
+        // memo$entry(table, entry): where the slots of the entry start in the table
+        code.add(".method private static memo$entry([II)I");
+        code.add("aload 0");
+        code.add(Instructions.pushInt(MASK));
+        code.add("iaload");
+        code.add(Instructions.pushInt(BUCKETS + 1));
+        code.add("iadd");
+        code.add("iload 1");
+        code.add(Instructions.pushInt(ENTRY_SIZE));
+        code.add("imul");
+        code.add("iadd");
+        code.add("ireturn");
+        code.add(".end method");
+        code.add("");
+
+        addFind(code, "J", "[J", 2, "laload", "lcmp", "ifne");
+        addFind(code, "Ljava/lang/Object;", "[Ljava/lang/Object;", 1, "aaload",
+                "invokevirtual java/lang/Object/equals(Ljava/lang/Object;)Z", "ifeq");
+        addUnlink(code);
+        addPush(code);
+
+        // memo$use(table, entry): makes the entry the most recently used one
+        code.add(".method private static memo$use([II)V");
+        code.add("aload 0");
+        code.add(Instructions.pushInt(NEWEST));
+        code.add("iaload");
+        code.add("iload 1");
+        code.add("if_icmpeq Done");
+        code.add("aload 0");
+        code.add("iload 1");
+        code.add("invokestatic main/memo$unlink([II)V");
+        code.add("aload 0");
+        code.add("iload 1");
+        code.add("invokestatic main/memo$push([II)V");
+        code.add("Done:");
+        code.add("return");
+        code.add(".end method");
+        code.add("");
+
+        addAdd(code);
+    }
+
+    /**
+     * Stores the value the instruction pushes in a slot of the table in the local variable.
+     */
+    private static void setSlot(JasminBytecode code, int table, int slot, String push) {
+        code.add("aload " + table);
+        code.add(Instructions.pushInt(slot));
+        code.add(push);
+        code.add("iastore");
+    }
+
+    private static void addSpread(JasminBytecode code) {
+        code.add("dup");
+        code.add("bipush 16");
+        code.add("iushr");
+        code.add("ixor");
+        code.add("ireturn");
+    }
+
+    /**
+     * memo$find(key, keys, table): the entry with the key, which becomes the most recently used
+     * one, or -1. Counts a hit or a miss.
+     */
+    private static void addFind(JasminBytecode code, String keyType, String keyArray, int keySize, String loadKey,
+                                String compare, String branchIfDifferent) {
+        int keys = keySize;
+        int table = keys + 1;
+        int hash = table + 1;
+        int entry = hash + 1;
+        int start = entry + 1;
+        String load = keySize == 2 ? "lload 0" : "aload 0";
+
+        code.add(".method private static memo$find(" + keyType + keyArray + TABLE + ")I");
+        code.add(load);
+        code.add("invokestatic main/memo$hash(" + keyType + ")I");
+        code.add("istore " + hash);
+        code.add("aload " + table);
+        code.add(Instructions.pushInt(BUCKETS));
+        code.add("iload " + hash);
+        code.add("aload " + table);
+        code.add(Instructions.pushInt(MASK));
+        code.add("iaload");
+        code.add("iand");
+        code.add("iadd");
+        code.add("iaload");
+        code.add("iconst_1");
+        code.add("isub");
+        code.add("istore " + entry);
+
+        code.add("Next:");
+        code.add("iload " + entry);
+        code.add("iflt Miss");
+        code.add("aload " + table);
+        code.add("iload " + entry);
+        code.add(ENTRY);
+        code.add("istore " + start);
+        code.add("aload " + table);
+        code.add("iload " + start);
+        code.add(Instructions.pushInt(HASH));
+        code.add("iadd");
+        code.add("iaload");
+        code.add("iload " + hash);
+        code.add("if_icmpne Skip");
+        if (keySize == 2) {
+            code.add("aload " + keys);
+            code.add("iload " + entry);
+            code.add(loadKey);
+            code.add(load);
+        } else {
+            code.add(load);
+            code.add("aload " + keys);
+            code.add("iload " + entry);
+            code.add(loadKey);
+        }
+        code.add(compare);
+        code.add(branchIfDifferent + " Skip");
+        code.add("aload " + table);
+        code.add("iload " + entry);
+        code.add("invokestatic main/memo$use([II)V");
+        addCount(code, table, HITS);
+        code.add("iload " + entry);
+        code.add("ireturn");
+
+        code.add("Skip:");
+        code.add("aload " + table);
+        code.add("iload " + start);
+        code.add(Instructions.pushInt(NEXT));
+        code.add("iadd");
+        code.add("iaload");
+        code.add("iconst_1");
+        code.add("isub");
+        code.add("istore " + entry);
+        code.add("goto Next");
+
+        code.add("Miss:");
+        addCount(code, table, MISSES);
+        code.add("iconst_m1");
+        code.add("ireturn");
+        code.add(".end method");
+        code.add("");
+    }
+
+    private static void addCount(JasminBytecode code, int table, int counter) {
+        code.add("aload " + table);
+        code.add(Instructions.pushInt(counter));
+        code.add("dup2");
+        code.add("iaload");
+        code.add("iconst_1");
+        code.add("iadd");
+        code.add("iastore");
+    }
+
+    /**
+     * memo$unlink(table, entry): takes the entry out of the order in which the entries were used.
+     */
+    private static void addUnlink(JasminBytecode code) {
+        code.add(".method private static memo$unlink([II)V");
+        code.add("aload 0");
+        code.add("iload 1");
+        code.add(ENTRY);
+        code.add("istore 2");
+        loadField(code, 2, NEWER);
+        code.add("istore 3");
+        loadField(code, 2, OLDER);
+        code.add("istore 4");
+
+        code.add("iload 3");
+        code.add("iflt Newest");
+        setField(code, 3, OLDER, "iload 4");
+        code.add("goto Older");
+        code.add("Newest:");
+        setSlot(code, 0, NEWEST, "iload 4");
+
+        code.add("Older:");
+        code.add("iload 4");
+        code.add("iflt Oldest");
+        setField(code, 4, NEWER, "iload 3");
+        code.add("return");
+        code.add("Oldest:");
+        setSlot(code, 0, OLDEST, "iload 3");
+        code.add("return");
+        code.add(".end method");
+        code.add("");
+    }
+
+    /**
+     * memo$push(table, entry): makes the entry that isn't in the order the most recently used one.
+     */
+    private static void addPush(JasminBytecode code) {
+        code.add(".method private static memo$push([II)V");
+        code.add("aload 0");
+        code.add("iload 1");
+        code.add(ENTRY);
+        code.add("istore 2");
+        code.add("aload 0");
+        code.add(Instructions.pushInt(NEWEST));
+        code.add("iaload");
+        code.add("istore 3");
+        storeField(code, 2, NEWER, "iconst_m1");
+        storeField(code, 2, OLDER, "iload 3");
+
+        code.add("iload 3");
+        code.add("iflt Empty");
+        setField(code, 3, NEWER, "iload 1");
+        code.add("goto Done");
+        code.add("Empty:");
+        setSlot(code, 0, OLDEST, "iload 1");
+        code.add("Done:");
+        setSlot(code, 0, NEWEST, "iload 1");
+        code.add("return");
+        code.add(".end method");
+        code.add("");
+    }
+
+    /**
+     * memo$add(table, hash): the entry to store new arguments with the hash in. That is a free one,
+     * or when the cache is full, the least recently used one.
+     */
+    private static void addAdd(JasminBytecode code) {
+        code.add(".method private static memo$add([II)I");
+        code.add("aload 0");
+        code.add(Instructions.pushInt(SIZE));
+        code.add("iaload");
+        code.add("aload 0");
+        code.add(Instructions.pushInt(CAPACITY));
+        code.add("iaload");
+        code.add("if_icmpge Evict");
+        code.add("aload 0");
+        code.add(Instructions.pushInt(SIZE));
+        code.add("iaload");
+        code.add("istore 2");
+        code.add("aload 0");
+        code.add(Instructions.pushInt(SIZE));
+        code.add("iload 2");
+        code.add("iconst_1");
+        code.add("iadd");
+        code.add("iastore");
+        code.add("goto Link");
+
+        code.add("Evict:");
+        code.add("aload 0");
+        code.add(Instructions.pushInt(OLDEST));
+        code.add("iaload");
+        code.add("istore 2");
+        code.add("aload 0");
+        code.add("iload 2");
+        code.add("invokestatic main/memo$unlink([II)V");
+        code.add("aload 0");
+        code.add("iload 2");
+        code.add(ENTRY);
+        code.add("istore 4");
+        // Local 3 is the slot that points to the entry: its bucket, or the entry before it
+        code.add(Instructions.pushInt(BUCKETS));
+        loadField(code, 4, HASH);
+        code.add("aload 0");
+        code.add(Instructions.pushInt(MASK));
+        code.add("iaload");
+        code.add("iand");
+        code.add("iadd");
+        code.add("istore 3");
+        code.add("Find:");
+        code.add("aload 0");
+        code.add("iload 3");
+        code.add("iaload");
+        code.add("iconst_1");
+        code.add("isub");
+        code.add("iload 2");
+        code.add("if_icmpeq Found");
+        code.add("aload 0");
+        code.add("aload 0");
+        code.add("iload 3");
+        code.add("iaload");
+        code.add("iconst_1");
+        code.add("isub");
+        code.add(ENTRY);
+        code.add(Instructions.pushInt(NEXT));
+        code.add("iadd");
+        code.add("istore 3");
+        code.add("goto Find");
+        code.add("Found:");
+        code.add("aload 0");
+        code.add("iload 3");
+        loadField(code, 4, NEXT);
+        code.add("iastore");
+
+        code.add("Link:");
+        code.add(Instructions.pushInt(BUCKETS));
+        code.add("iload 1");
+        code.add("aload 0");
+        code.add(Instructions.pushInt(MASK));
+        code.add("iaload");
+        code.add("iand");
+        code.add("iadd");
+        code.add("istore 3");
+        code.add("aload 0");
+        code.add("iload 2");
+        code.add(ENTRY);
+        code.add("istore 4");
+        code.add("aload 0");
+        code.add("iload 3");
+        code.add("iaload");
+        code.add("istore 5");
+        storeField(code, 4, NEXT, "iload 5");
+        storeField(code, 4, HASH, "iload 1");
+        code.add("aload 0");
+        code.add("iload 3");
+        code.add("iload 2");
+        code.add("iconst_1");
+        code.add("iadd");
+        code.add("iastore");
+        code.add("aload 0");
+        code.add("iload 2");
+        code.add("invokestatic main/memo$push([II)V");
+        code.add("iload 2");
+        code.add("ireturn");
+        code.add(".end method");
+        code.add("");
+    }
+
+    /**
+     * Pushes a slot of the entry that starts at the table slot in the local variable. The table is
+     * in local variable 0.
+     */
+    private static void loadField(JasminBytecode code, int start, int field) {
+        code.add("aload 0");
+        code.add("iload " + start);
+        code.add(Instructions.pushInt(field));
+        code.add("iadd");
+        code.add("iaload");
+    }
+
+    /**
+     * Stores a value in a slot of the entry that starts at the table slot in the local variable.
+     */
+    private static void storeField(JasminBytecode code, int start, int field, String push) {
+        code.add("aload 0");
+        code.add("iload " + start);
+        code.add(Instructions.pushInt(field));
+        code.add("iadd");
+        code.add(push);
+        code.add("iastore");
+    }
+
+    /**
+     * Stores a value in a slot of the entry with the number in the local variable.
+     */
+    private static void setField(JasminBytecode code, int entry, int field, String push) {
+        code.add("aload 0");
+        code.add("aload 0");
+        code.add("iload " + entry);
+        code.add(ENTRY);
+        code.add(Instructions.pushInt(field));
+        code.add("iadd");
+        code.add(push);
+        code.add("iastore");
+    }
+}
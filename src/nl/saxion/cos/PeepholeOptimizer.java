@@ -0,0 +1,445 @@
+package nl.saxion.cos;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cleans up the generated code one method at a time, by rewriting short sequences of instructions
+ * until none of the rules applies anymore:
+ * <ul>
+ *     <li>jumps to a goto go straight to its target, and a goto to a return becomes the return;</li>
+ *     <li>a conditional branch over a goto is inverted, and jumps to the next instruction are removed;</li>
+ *     <li>a constant that is only pushed to be tested by ifeq or ifne is replaced by a goto to where
+ *         the test would go. This collapses the "ldc 1 / goto / ldc 0" sequences that turn a comparison
+ *         into a boolean just to test it, into a single conditional branch;</li>
+ *     <li>a store directly followed by a load of the same variable, which isn't read anywhere else, is
+ *         removed, so the value simply stays on the stack. Stores that are never read become a pop,
+ *         and a value that is pushed and immediately popped is not pushed at all;</li>
+ *     <li>unreachable instructions and unused labels are removed.</li>
+ * </ul>
+ */
+public class PeepholeOptimizer {
+    /** Labels the optimizer adds start with P, the CodeGenerator's labels start with L. */
+    private int unique = 0;
+
+    private final List<String> report = new ArrayList<>();
+    private int instructionsBefore = 0;
+    private int instructionsAfter = 0;
+
+    /**
+     * @return  The optimized code. The code that is passed in is not changed.
+     */
+    public JasminBytecode optimize(JasminBytecode code) {
+        JasminMethods methods = JasminMethods.split(code);
+        optimize(methods);
+        return methods.toBytecode();
+    }
+
+    /**
+     * Optimizes the bodies of the methods.
+     */
+    void optimize(JasminMethods code) {
+        for (JasminMethods.Method method : code.getMethods()) {
+            List<String> body = method.getBody();
+            body.removeIf(String::isEmpty);
+
+            int before = countInstructions(body);
+            optimizeMethod(body);
+            int after = countInstructions(body);
+            instructionsBefore += before;
+            instructionsAfter += after;
+            report.add("peephole " + method.getName() + ": " + before + " -> " + after + " instructions");
+        }
+    }
+
+    /**
+     * @return  For every method, the number of instructions before and after optimizing.
+     */
+    public List<String> getReport() {
+        return report;
+    }
+
+    public int getInstructionsBefore() {
+        return instructionsBefore;
+    }
+
+    public int getInstructionsAfter() {
+        return instructionsAfter;
+    }
+
+    private static int countInstructions(List<String> body) {
+        int count = 0;
+        for (String line : body) {
+            if (Instructions.isInstruction(line)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void optimizeMethod(List<String> code) {
+        // Turning a goto into a return copies the return, which would stand in the way of the other
+        // rules. So that is only done once they are finished.
+        do {
+            boolean changed = true;
+            while (changed) {
+                changed = threadJumps(code);
+                changed |= resolveConstantTests(code);
+                changed |= invertBranchesOverGoto(code);
+                changed |= removeJumpsToNext(code);
+                changed |= removeUnreachable(code);
+                changed |= removeStoreLoadPairs(code);
+                changed |= removePushPop(code);
+                changed |= removeUnusedLabels(code);
+            }
+        } while (replaceJumpsToReturn(code));
+    }
+
+    private static Map<String, Integer> labelIndexes(List<String> code) {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < code.size(); i++) {
+            if (Instructions.isLabel(code.get(i))) {
+                labels.put(Instructions.labelName(code.get(i)), i);
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * @return  How often every label is used by a branch or an exception handler.
+     */
+    private static Map<String, Integer> labelReferences(List<String> code) {
+        Map<String, Integer> references = new HashMap<>();
+        for (String line : code) {
+            if (Instructions.isInstruction(line) && Instructions.isBranch(Instructions.mnemonic(line))) {
+                references.merge(Instructions.operand(line), 1, Integer::sum);
+            } else if (line.startsWith(".catch")) {
+                // .catch <class> from <label> to <label> using <label>
+                String[] words = line.split("\\s+");
+                for (int i = 3; i < words.length; i += 2) {
+                    references.merge(words[i], 1, Integer::sum);
+                }
+            }
+        }
+        return references;
+    }
+
+    /**
+     * @return  The index of the first instruction at or after the given index, skipping labels.
+     */
+    private static int instructionAt(List<String> code, int index) {
+        while (index < code.size() && !Instructions.isInstruction(code.get(index))) {
+            if (code.get(index).startsWith(".")) {
+                return -1;
+            }
+            index++;
+        }
+        return index < code.size() ? index : -1;
+    }
+
+    /**
+     * @return  A label right after the instruction at the given index, added if there is none.
+     */
+    private String labelAfter(List<String> code, int index) {
+        if (index + 1 < code.size() && Instructions.isLabel(code.get(index + 1))) {
+            return Instructions.labelName(code.get(index + 1));
+        }
+        String label = "P" + ++unique;
+        code.add(index + 1, label + ":");
+        return label;
+    }
+
+    private static String negate(String mnemonic) {
+        switch (mnemonic) {
+            case "ifeq": return "ifne";
+            case "ifne": return "ifeq";
+            case "iflt": return "ifge";
+            case "ifge": return "iflt";
+            case "ifgt": return "ifle";
+            case "ifle": return "ifgt";
+            case "if_icmpeq": return "if_icmpne";
+            case "if_icmpne": return "if_icmpeq";
+            case "if_icmplt": return "if_icmpge";
+            case "if_icmpge": return "if_icmplt";
+            case "if_icmpgt": return "if_icmple";
+            case "if_icmple": return "if_icmpgt";
+            case "if_acmpeq": return "if_acmpne";
+            case "if_acmpne": return "if_acmpeq";
+            case "ifnull": return "ifnonnull";
+            case "ifnonnull": return "ifnull";
+            default: throw new IllegalArgumentException("Not a conditional branch: " + mnemonic);
+        }
+    }
+
+    /**
+     * Branches to a goto go to the target of that goto.
+     */
+    private static boolean threadJumps(List<String> code) {
+        Map<String, Integer> labels = labelIndexes(code);
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            String line = code.get(i);
+            if (!Instructions.isInstruction(line) || !Instructions.isBranch(Instructions.mnemonic(line))) {
+                continue;
+            }
+            String target = Instructions.operand(line);
+
+            Set<String> seen = new HashSet<>();
+            seen.add(target);
+            int next = instructionAt(code, labels.get(target));
+            while (next >= 0 && Instructions.mnemonic(code.get(next)).equals("goto")
+                    && seen.add(Instructions.operand(code.get(next)))) {
+                target = Instructions.operand(code.get(next));
+                next = instructionAt(code, labels.get(target));
+            }
+            if (!target.equals(Instructions.operand(line))) {
+                code.set(i, Instructions.mnemonic(line) + " " + target);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * A goto to a return or athrow does that right away; the stack is the same either way.
+     */
+    private static boolean replaceJumpsToReturn(List<String> code) {
+        Map<String, Integer> labels = labelIndexes(code);
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            String line = code.get(i);
+            if (!Instructions.isInstruction(line) || !Instructions.mnemonic(line).equals("goto")) {
+                continue;
+            }
+            int next = instructionAt(code, labels.get(Instructions.operand(line)));
+            if (next >= 0 && Instructions.endsFlow(Instructions.mnemonic(code.get(next)))
+                    && Instructions.operand(code.get(next)).isEmpty()) {
+                code.set(i, code.get(next));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * A constant that is pushed and then tested by ifeq or ifne, directly or after a goto, is replaced
+     * by a goto to where the test would go.
+     */
+    private boolean resolveConstantTests(List<String> code) {
+        boolean changed = false;
+        for (int i = 0; i + 1 < code.size(); i++) {
+            Integer constant = Instructions.intConstant(code.get(i));
+            if (constant == null || !Instructions.isInstruction(code.get(i))) {
+                continue;
+            }
+
+            String next = code.get(i + 1);
+            int test;
+            int replaced;
+            if (Instructions.mnemonic(next).equals("goto") && Instructions.isInstruction(next)) {
+                Integer label = labelIndexes(code).get(Instructions.operand(next));
+                test = instructionAt(code, label);
+                replaced = 2;
+            } else {
+                test = instructionAt(code, i + 1);
+                replaced = 1;
+            }
+            if (test < 0 || test == i) {
+                continue;
+            }
+            String mnemonic = Instructions.mnemonic(code.get(test));
+            if (!mnemonic.equals("ifeq") && !mnemonic.equals("ifne")) {
+                continue;
+            }
+
+            boolean taken = mnemonic.equals("ifeq") == (constant == 0);
+            int size = code.size();
+            String target = taken ? Instructions.operand(code.get(test)) : labelAfter(code, test);
+            if (test < i) {
+                // A label added after a test earlier in the method moves the constant down
+                i += code.size() - size;
+            }
+            if (replaced == 2) {
+                code.remove(i + 1);
+            }
+            code.set(i, "goto " + target);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * if.. L1 / goto L2 / L1: becomes ifnot.. L2 / L1:
+     */
+    private static boolean invertBranchesOverGoto(List<String> code) {
+        boolean changed = false;
+        for (int i = 0; i + 2 < code.size(); i++) {
+            String branch = code.get(i);
+            String jump = code.get(i + 1);
+            if (!Instructions.isInstruction(branch) || !Instructions.isConditionalBranch(Instructions.mnemonic(branch))
+                    || !Instructions.isInstruction(jump) || !Instructions.mnemonic(jump).equals("goto")) {
+                continue;
+            }
+            if (labelsFollowing(code, i + 1).contains(Instructions.operand(branch))) {
+                code.set(i, negate(Instructions.mnemonic(branch)) + " " + Instructions.operand(jump));
+                code.remove(i + 1);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return  The labels directly after the given index.
+     */
+    private static Set<String> labelsFollowing(List<String> code, int index) {
+        Set<String> labels = new HashSet<>();
+        for (int i = index + 1; i < code.size() && Instructions.isLabel(code.get(i)); i++) {
+            labels.add(Instructions.labelName(code.get(i)));
+        }
+        return labels;
+    }
+
+    /**
+     * Removes gotos to the next instruction. A conditional branch to the next instruction only has
+     * to pop what it would have tested.
+     */
+    private static boolean removeJumpsToNext(List<String> code) {
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            String line = code.get(i);
+            if (!Instructions.isInstruction(line) || !Instructions.isBranch(Instructions.mnemonic(line))
+                    || !labelsFollowing(code, i).contains(Instructions.operand(line))) {
+                continue;
+            }
+            String mnemonic = Instructions.mnemonic(line);
+            if (mnemonic.equals("goto")) {
+                code.remove(i);
+                i--;
+            } else {
+                code.set(i, Instructions.stackEffect(line) == -2 ? "pop2" : "pop");
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Removes the instructions between a goto, return or athrow and the next label.
+     */
+    private static boolean removeUnreachable(List<String> code) {
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            String line = code.get(i);
+            if (!Instructions.isInstruction(line) || !Instructions.endsFlow(Instructions.mnemonic(line))) {
+                continue;
+            }
+            while (i + 1 < code.size() && Instructions.isInstruction(code.get(i + 1))) {
+                code.remove(i + 1);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return  How often every local variable is read, by a load or iinc.
+     */
+    private static Map<Integer, Integer> localReads(List<String> code) {
+        Map<Integer, Integer> reads = new HashMap<>();
+        for (String line : code) {
+            if (!Instructions.isInstruction(line)) {
+                continue;
+            }
+            String mnemonic = Instructions.mnemonic(line);
+            int variable = Instructions.localVariable(line);
+            if (variable < 0 || mnemonic.contains("store")) {
+                continue;
+            }
+            reads.merge(variable, 1, Integer::sum);
+            if (!mnemonic.equals("iinc") && Instructions.localVariableSize(line) == 2) {
+                reads.merge(variable + 1, 1, Integer::sum);
+            }
+        }
+        return reads;
+    }
+
+    /**
+     * xstore n / xload n becomes nothing if n isn't read anywhere else, and a store to a variable that
+     * is never read becomes a pop.
+     */
+    private static boolean removeStoreLoadPairs(List<String> code) {
+        Map<Integer, Integer> reads = localReads(code);
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            String store = code.get(i);
+            if (!Instructions.isInstruction(store) || !Instructions.mnemonic(store).contains("store")
+                    || Instructions.mnemonic(store).length() > "astore".length() + 2) {
+                continue;
+            }
+            int variable = Instructions.localVariable(store);
+            if (variable < 0) {
+                continue;
+            }
+            int size = Instructions.localVariableSize(store);
+            int readCount = reads.getOrDefault(variable, 0) + (size == 2 ? reads.getOrDefault(variable + 1, 0) : 0);
+
+            if (readCount == 0) {
+                code.set(i, size == 2 ? "pop2" : "pop");
+                changed = true;
+            } else if (i + 1 < code.size() && Instructions.isInstruction(code.get(i + 1))
+                    && reads.getOrDefault(variable, 0) == 1
+                    && Instructions.localVariable(code.get(i + 1)) == variable
+                    && code.get(i + 1).charAt(0) == store.charAt(0)
+                    && Instructions.mnemonic(code.get(i + 1)).contains("load")) {
+                code.remove(i + 1);
+                code.remove(i);
+                reads.remove(variable);
+                i--;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * A value without side effects that is pushed and popped right away isn't pushed at all.
+     */
+    private static boolean removePushPop(List<String> code) {
+        boolean changed = false;
+        for (int i = 0; i + 1 < code.size(); i++) {
+            String push = code.get(i);
+            String pop = code.get(i + 1);
+            if (!Instructions.isInstruction(push) || !Instructions.isInstruction(pop)) {
+                continue;
+            }
+            String popMnemonic = Instructions.mnemonic(pop);
+            int size = popMnemonic.equals("pop") ? 1 : popMnemonic.equals("pop2") ? 2 : 0;
+            if (size > 0 && isPlainPush(push) && Instructions.stackEffect(push) == size) {
+                code.remove(i + 1);
+                code.remove(i);
+                i = Math.max(-1, i - 2);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isPlainPush(String instruction) {
+        String mnemonic = Instructions.mnemonic(instruction);
+        return mnemonic.startsWith("iconst") || mnemonic.startsWith("dconst") || mnemonic.startsWith("fconst")
+                || mnemonic.startsWith("lconst") || mnemonic.equals("aconst_null")
+                || mnemonic.equals("bipush") || mnemonic.equals("sipush") || mnemonic.startsWith("ldc")
+                || mnemonic.equals("dup") || mnemonic.equals("dup2")
+                || (Instructions.localVariable(instruction) >= 0 && mnemonic.contains("load"));
+    }
+
+    private static boolean removeUnusedLabels(List<String> code) {
+        Map<String, Integer> references = labelReferences(code);
+        return code.removeIf(line -> Instructions.isLabel(line) && !references.containsKey(Instructions.labelName(line)));
+    }
+}
@@ -2,6 +2,14 @@ package nl.saxion.cos;
 
 import java.util.HashMap;
 
+/**
+ * The variables and methods declared in a block, and the local variable slots of its variables.
+ *
+ * A scope starts at the first slot its parent hasn't used yet. When it is closed its slots are free
+ * again: the parent never moved past them, so the next block opened in the parent starts at the same
+ * slot. Variables of sibling blocks like two assumings or two fer loops share slots this way, and
+ * the frame only needs room for the deepest nesting.
+ */
 public class Scope {
 
     private final Scope parentScope;
@@ -18,14 +26,8 @@ public class Scope {
 
     public Symbol declareVariable(String name, DataType type) {
         assert !symbols.containsKey(name);
-        Symbol symbol = null;
-        //TODO fix :)
-        if (type == DataType.DOUBLE) {
-            symbol = new Symbol(name, type,  nextFreeSlot++);
-            nextFreeSlot++;
-        } else {
-            symbol = new Symbol(name, type, nextFreeSlot++);
-        }
+        Symbol symbol = new Symbol(name, type, nextFreeSlot);
+        nextFreeSlot += slotSize(type);
 
         symbols.put(name, symbol);
         return symbol;
@@ -59,4 +61,11 @@ public class Scope {
     public int getFreeSlot() {
         return nextFreeSlot;
     }
+
+    /**
+     * @return  The number of local variable slots a variable of the type takes: two for a double.
+     */
+    public static int slotSize(DataType type) {
+        return type == DataType.DOUBLE ? 2 : 1;
+    }
 }
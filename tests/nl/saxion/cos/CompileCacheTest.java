@@ -0,0 +1,75 @@
+package nl.saxion.cos;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompileCacheTest {
+	private static final byte[] SOURCE = "SAIL say<\"ahoy\">$ RUM".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	void testOutputIsDeterministic() throws Exception {
+		String source = "SAIL number a ~ 1$ meantime<a below 3> [ a++$ ] RUM";
+		JasminBytecode first = new Compiler().compileString(source, "main");
+		JasminBytecode second = new Compiler().compileString(source, "main");
+
+		assertEquals(first.getText().toString(), second.getText().toString());
+	}
+
+	@Test
+	void testSecondCompileIsAHit(@TempDir Path dir) throws Exception {
+		CompileCache cache = new CompileCache(dir, CompileCache.DEFAULT_MAX_BYTES);
+
+		CompileCache.Entry miss = cache.compile(new Compiler(), SOURCE, "main");
+		CompileCache.Entry hit = cache.compile(new Compiler(), SOURCE, "main");
+
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(miss.getJasminBytecode().getText().toString(), hit.getJasminBytecode().getText().toString());
+		assertArrayEquals(miss.getAssembledClass().getClassBytes(), hit.getAssembledClass().getClassBytes());
+
+		// Entries survive reopening the cache
+		CompileCache reopened = new CompileCache(dir, CompileCache.DEFAULT_MAX_BYTES);
+		assertNotNull(reopened.lookup(CompileCache.key(new Compiler(), SOURCE, "main"), "main"));
+	}
+
+	@Test
+	void testClassNameIsPartOfTheKey() {
+		assertNotEquals(CompileCache.key(new Compiler(), SOURCE, "main"), CompileCache.key(new Compiler(), SOURCE, "other"));
+	}
+
+	@Test
+	void testOptionsArePartOfTheKey(@TempDir Path dir) throws Exception {
+		CompileCache cache = new CompileCache(dir, CompileCache.DEFAULT_MAX_BYTES);
+		cache.compile(new Compiler(), SOURCE, "main");
+
+		Compiler buffered = new Compiler();
+		buffered.setBufferedOutput(true);
+		CompileCache.Entry entry = cache.compile(buffered, SOURCE, "main");
+
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getHits());
+		assertTrue(entry.getJasminBytecode().getText().toString().contains("flush$"));
+	}
+
+	@Test
+	void testLeastRecentlyUsedEntryIsEvicted(@TempDir Path dir) throws Exception {
+		byte[] other = "SAIL say<\"avast\">$ RUM".getBytes(StandardCharsets.UTF_8);
+		CompileCache unbounded = new CompileCache(dir.resolve("size"), CompileCache.DEFAULT_MAX_BYTES);
+		unbounded.compile(new Compiler(), SOURCE, "main");
+		long entrySize = unbounded.getSize();
+
+		// Room for one entry only
+		CompileCache cache = new CompileCache(dir.resolve("cache"), entrySize + entrySize / 2);
+		cache.compile(new Compiler(), SOURCE, "main");
+		cache.compile(new Compiler(), other, "main");
+
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.lookup(CompileCache.key(new Compiler(), SOURCE, "main"), "main"));
+		assertNotNull(cache.lookup(CompileCache.key(new Compiler(), other, "main"), "main"));
+	}
+}
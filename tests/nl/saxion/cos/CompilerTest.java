@@ -1,7 +1,18 @@
 package nl.saxion.cos;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -100,4 +111,761 @@ class CompilerTest {
                 ""
         }, output.toArray());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testBatchCompileKeepsFilesIsolated(@TempDir Path dir) throws Exception {
+        Files.writeString(dir.resolve("good.pc"), "SAIL say<\"ahoy\">$ RUM");
+        Files.writeString(dir.resolve("bad.pc"), "SAIL say<\"ahoy\" RUM");
+        // Nested deep enough to overflow the stack of the recursive parser and visitors
+        Files.writeString(dir.resolve("deep.pc"), "SAIL say<" + "<".repeat(20000) + "1" + ">".repeat(20000) + ">$ RUM");
+
+        List<Path> sources = BatchCompiler.collectSources(List.of(dir));
+        List<BatchCompiler.Result> results = new BatchCompiler(2).compileAll(sources);
+
+        // Sources are sorted, so the broken files come first
+        assertEquals(3, results.size());
+        assertFalse(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertTrue(results.get(1).getDiagnostics().get(0).startsWith("StackOverflowError"));
+        assertTrue(results.get(2).isSuccess());
+        assertTrue(Files.exists(dir.resolve("good.class")));
+        assertFalse(Files.exists(dir.resolve("bad.class")));
+    }
+
+    @Test
+    void testDaemonCompilesOverSocket() throws Exception {
+        CompilerDaemon daemon = new CompilerDaemon(0);
+        Thread server = new Thread(daemon::serve);
+        server.start();
+
+        try (CompilerClient client = new CompilerClient(daemon.getPort())) {
+            CompilerClient.Response ok = client.compile("SAIL say<\"ahoy\">$ RUM", "main");
+            assertTrue(ok.isSuccess());
+            assertTrue(ok.getJasmin().contains("ldc \"ahoy\""));
+            assertTrue(ok.getClassBytes().length > 0);
+
+            CompilerClient.Response broken = client.compile("SAIL say<\"ahoy\" RUM", "main");
+            assertFalse(broken.isSuccess());
+            assertFalse(broken.getDiagnostics().isEmpty());
+
+            // Nested deep enough to overflow the stack of the recursive parser and visitors
+            CompilerClient.Response deep = client.compile(
+                    "SAIL say<" + "<".repeat(20000) + "1" + ">".repeat(20000) + ">$ RUM", "main");
+            assertFalse(deep.isSuccess());
+            assertTrue(deep.getDiagnostics().get(0).startsWith("StackOverflowError"));
+
+            assertTrue(client.getStatistics().startsWith("requests: 3"));
+
+            // A bad source length is answered with a diagnostic, and the connection stays usable
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream in = new DataInputStream(socket.getInputStream())) {
+                out.writeUTF(CompilerDaemon.COMPILE);
+                out.writeUTF("main");
+                out.writeInt(-1);
+                out.writeUTF(CompilerDaemon.STATS);
+                out.flush();
+
+                assertFalse(in.readBoolean());
+                assertEquals(1, in.readInt());
+                assertTrue(in.readUTF().startsWith("Source length -1"));
+                in.readLong();
+                assertTrue(in.readUTF().startsWith("requests: 3"));
+            }
+            client.shutdown();
+        }
+        server.join(5000);
+        assertFalse(server.isAlive());
+    }
+
+    @Test
+    void testMetricsCoverEveryPhase() throws Exception {
+        Compiler c = new Compiler();
+        JasminBytecode code = c.compileString("SAIL say<\"ahoy\">$ RUM", "main");
+        AssembledClass aClass = AssembledClass.assemble(code, c.getMetrics());
+
+        CompileMetrics metrics = c.getMetrics();
+        assertEquals(8, metrics.getPhases().size());
+        assertEquals(8, metrics.getPhase(CompileMetrics.LEXER).getCounts().get("tokens"));
+        assertTrue(metrics.getPhase(CompileMetrics.PARSER).getCounts().get("nodes") > 0);
+        assertEquals(0, metrics.getPhase(CompileMetrics.CONSTANT_FOLDER).getCounts().get("foldedNodes"));
+        assertTrue(metrics.getPhase(CompileMetrics.CODE_GENERATOR).getCounts().get("jasminLines") > 0);
+        assertEquals(4, metrics.getPhase(CompileMetrics.OPTIMIZER).getCounts().get("instructionsAfter"));
+        assertEquals(aClass.getClassBytes().length, metrics.getPhase(CompileMetrics.ASSEMBLER).getCounts().get("classBytes"));
+        assertTrue(metrics.toJson().startsWith("{\"className\":\"main\""));
+    }
+
+    @Test
+    void testParserFallsBackToLlOnlyWhenNeeded() throws Exception {
+        long fallbacks = Compiler.getLlFallbackCount();
+        Compiler c = new Compiler();
+        assertNotNull(c.compileString("SAIL number a ~ 1$ say<a>$ RUM", "main"));
+        assertEquals(0, c.getMetrics().getPhase(CompileMetrics.PARSER).getCounts().get("llFallbacks"));
+
+        // A syntax error makes the SLL stage bail out; the LL stage reports it once
+        Compiler broken = new Compiler();
+        assertNull(broken.compileString("SAIL number a ~ $ RUM", "main"));
+        assertEquals(1, broken.getDiagnostics().size());
+        assertTrue(Compiler.getLlFallbackCount() > fallbacks);
+
+        // Reusing the compiler starts from a clean slate
+        assertNotNull(broken.compileString("SAIL number a ~ 1$ say<a>$ RUM", "main"));
+        assertTrue(broken.getDiagnostics().isEmpty());
+        assertEquals(0, broken.getMetrics().getPhase(CompileMetrics.PARSER).getCounts().get("llFallbacks"));
+    }
+
+    @Test
+    void testJasminIsEmittedIntoOneBuffer() throws Exception {
+        JasminBytecode code = new JasminBytecode("main")
+                .add("ldc 3")
+                .add()
+                .add("iadd");
+
+        assertEquals(3, code.getLineCount());
+        assertEquals(List.of("ldc 3", "", "iadd"), code.getLines());
+        assertEquals("ldc 3\n\niadd\n", code.getText().toString());
+
+        java.io.StringWriter written = new java.io.StringWriter();
+        code.openReader().transferTo(written);
+        assertEquals(code.getText().toString(), written.toString());
+    }
+
+    @Test
+    void testBothBackendsBehaveTheSame() throws Exception {
+        String[] programs = {
+                "testFiles/ForLoop/forloops.pc",
+                "testFiles/IfStatement/ifStatement.pc",
+                "testFiles/MathEquations/Math.pc",
+                "testFiles/MethodCreation/Methods.pc",
+        };
+        for (String program : programs) {
+            Compiler c = new Compiler();
+            JasminBytecode code = c.compileFile(program, "main");
+            assertNotNull(code, program);
+
+            assertEquals(runWith(code, Backend.JASMIN), runWith(code, Backend.DIRECT), program);
+        }
+
+        // while.pc never ends, so loop a few times only
+        Compiler c = new Compiler();
+        JasminBytecode code = c.compileString("SAIL number a ~ 1$ duplicate d ~ 0.5$ "
+                + "meantime<a below 729> [ say<a>$ say<d * 2.0>$ a ~ a * 3$ ] RUM", "main");
+        assertEquals("[1, 1.0, 3, 1.0, 9, 1.0, 27, 1.0, 81, 1.0, 243, 1.0]", runWith(code, Backend.DIRECT));
+        assertEquals(runWith(code, Backend.JASMIN), runWith(code, Backend.DIRECT));
+    }
+
+    @Test
+    void testDirectBackendRejectsUnknownInstructions() {
+        JasminBytecode code = new JasminBytecode("main")
+                .add(".class public main")
+                .add(".super java/lang/Object")
+                .add(".method public static main([Ljava/lang/String;)V")
+                .add("iconst_10")
+                .add("return")
+                .add(".end method");
+
+        AssembleException e = assertThrows(AssembleException.class, () -> ClassFileWriter.assemble(code));
+        assertTrue(e.getMessage().startsWith("line 4:"));
+    }
+
+    @Test
+    void testDirectBackendRejectsTooMuchCode() throws Exception {
+        // 200001 bytes of code, about three times what a method may have
+        JasminBytecode code = new JasminBytecode("main")
+                .add(".class public main")
+                .add(".super java/lang/Object")
+                .add(".method public static main([Ljava/lang/String;)V");
+        for (int i = 0; i < 100000; i++) {
+            code.add("iconst_1").add("pop");
+        }
+        code.add("return").add(".end method");
+
+        AssembleException e = assertThrows(AssembleException.class, () -> ClassFileWriter.assemble(code));
+        assertTrue(e.getMessage().contains("200001 bytes of code"), e.getMessage());
+    }
+
+    /**
+     * Runs the code assembled by the given backend, and returns its output or the exception it
+     * failed with.
+     */
+    private static String runWith(JasminBytecode code, Backend backend) throws Exception {
+        AssembledClass aClass = AssembledClass.assemble(code, null, backend);
+        SandBox s = new SandBox();
+        try {
+            s.runClass(aClass);
+        } catch (RuntimeException | LinkageError e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+        return s.getOutput().toString();
+    }
+
+    @Test
+    void testFrameLimitsAreExact() throws Exception {
+        // 120 nested additions need 121 stack slots, more than the old fixed limit of 99
+        StringBuilder deep = new StringBuilder("SAIL say<");
+        for (int i = 0; i < 120; i++) {
+            deep.append("1 + <");
+        }
+        deep.append('1');
+        for (int i = 0; i < 120; i++) {
+            deep.append('>');
+        }
+        deep.append(">$ duplicate d ~ 2.5$ number a ~ 3$ say<d * 2.0>$ say<a>$ RUM");
+
+        List<JasminBytecode> programs = new ArrayList<>();
+        for (String program : new String[]{
+                "testFiles/ForLoop/forloops.pc",
+                "testFiles/IfStatement/ifStatement.pc",
+                "testFiles/MathEquations/Math.pc",
+                "testFiles/MethodCreation/Methods.pc",
+                "testFiles/WhileLoop/while.pc"}) {
+            programs.add(new Compiler().compileFile(program, "main"));
+        }
+        JasminBytecode deepCode = new Compiler().compileString(deep.toString(), "main");
+        programs.add(deepCode);
+
+        SandBox s = new SandBox();
+        s.runClass(AssembledClass.assemble(deepCode));
+        assertEquals(List.of("121", "5.0", "3"), s.getOutput());
+
+        for (JasminBytecode code : programs) {
+            // The computed limits verify, but one slot less doesn't
+            assertTrue(verifies(code.getLines()), code.getText().toString());
+            List<String> lines = code.getLines();
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i);
+                if (line.startsWith(".limit")) {
+                    int limit = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+                    if (limit == 0) {
+                        continue;
+                    }
+                    List<String> smaller = new ArrayList<>(lines);
+                    smaller.set(i, line.substring(0, line.lastIndexOf(' ') + 1) + (limit - 1));
+                    assertFalse(verifies(smaller), line + " is more than needed in\n" + code.getText());
+                }
+            }
+        }
+    }
+
+    private static boolean verifies(List<String> lines) throws Exception {
+        AssembledClass aClass = AssembledClass.assemble(new JasminBytecode("main", new ArrayList<>(lines)));
+        try {
+            LoadedProgram.load(aClass);
+            return true;
+        } catch (VerifyError | ClassFormatError e) {
+            return false;
+        }
+    }
+
+    @Test
+    void testConstantExpressionsAreFolded() throws Exception {
+        Compiler c = new Compiler();
+        JasminBytecode code = c.compileString("SAIL number a ~ 3 * 4 + 2$ say<a>$ say<7 / 2>$ say<-7 / 2>$ "
+                + "say<0.1 + 0.2>$ say<1.0 / 3.0>$ say<2147483647 + 1>$ "
+                + "assuming<3 * 4 ~~ 12> [ say<\"folded\">$ ] say<a * <2 + 2>>$ RUM", "main");
+
+        // 3 * 4, + 2, 7 / 2, -7 / 2, 0.1 + 0.2, 1.0 / 3.0, 2147483647 + 1, 3 * 4, ~~, <2 + 2>, 2 + 2
+        assertEquals(11, c.getMetrics().getPhase(CompileMetrics.CONSTANT_FOLDER).getCounts().get("foldedNodes"));
+        assertTrue(code.getLines().contains("bipush 14"));
+        // a * 4 then becomes a shift by 2
+        assertTrue(code.getLines().contains("ishl"));
+        assertFalse(code.getLines().contains("iadd"));
+
+        // Folded values are exactly what the JVM computes
+        List<String> expected = List.of("14", "3", "-3", String.valueOf(0.1 + 0.2), String.valueOf(1.0 / 3.0),
+                String.valueOf(Integer.MIN_VALUE), "folded", "56");
+        for (Backend backend : Backend.values()) {
+            assertEquals(expected.toString(), runWith(code, backend));
+        }
+
+        // Division by zero is left to fail at runtime
+        Compiler zero = new Compiler();
+        JasminBytecode division = zero.compileString("SAIL say<1 / 0>$ RUM", "main");
+        assertEquals(0, zero.getMetrics().getPhase(CompileMetrics.CONSTANT_FOLDER).getCounts().get("foldedNodes"));
+        assertTrue(division.getLines().contains("idiv"));
+    }
+
+    @Test
+    void testPeepholeOptimizerKeepsBehavior() throws Exception {
+        String loop = "SAIL number a ~ 5$ assuming<a below 7> [ say<\"small\">$ ] assuming<a above 7> [ say<\"big\">$ ] "
+                + "number b ~ 0$ meantime<b below 729> [ b ~ b + 243$ ] say<b>$ RUM";
+        String[] programs = {
+                "testFiles/ForLoop/forloops.pc",
+                "testFiles/IfStatement/ifStatement.pc",
+                "testFiles/MathEquations/Math.pc",
+                "testFiles/MethodCreation/Methods.pc",
+                loop};
+
+        for (String program : programs) {
+            Compiler plain = new Compiler();
+            plain.setOptimize(false);
+            Compiler optimizing = new Compiler();
+            JasminBytecode unoptimized = program.endsWith(".pc") ? plain.compileFile(program, "main")
+                    : plain.compileString(program, "main");
+            JasminBytecode optimized = program.endsWith(".pc") ? optimizing.compileFile(program, "main")
+                    : optimizing.compileString(program, "main");
+
+            CompileMetrics.Phase optimizer = optimizing.getMetrics().getPhase(CompileMetrics.OPTIMIZER);
+            assertTrue(optimizer.getCounts().get("instructionsAfter") <= optimizer.getCounts().get("instructionsBefore"),
+                    program);
+            assertTrue(plain.getOptimizationReport().isEmpty());
+            for (Backend backend : Backend.values()) {
+                assertEquals(runWith(unoptimized, backend), runWith(optimized, backend), program);
+            }
+        }
+
+        // A comparison that is turned into a boolean only to be tested becomes a single branch
+        JasminBytecode code = new JasminBytecode("main");
+        code.add(".class public main").add(".super java/lang/Object")
+                .add(".method public static main([Ljava/lang/String;)V")
+                .add("ldc 5").add("istore 1").add("iload 1").add("ldc 7")
+                .add("if_icmpge L1").add("ldc 1").add("goto L2").add("L1:").add("ldc 0").add("L2:")
+                .add("ifeq L3")
+                .add("getstatic java/lang/System/out Ljava/io/PrintStream;").add("ldc \"small\"")
+                .add("invokevirtual java/io/PrintStream/println(Ljava/lang/String;)V")
+                .add("L3:").add("return")
+                .add(".end method");
+        PeepholeOptimizer peephole = new PeepholeOptimizer();
+        JasminBytecode optimized = peephole.optimize(code);
+        assertEquals(List.of("peephole main([Ljava/lang/String;)V: 13 -> 7 instructions"), peephole.getReport());
+        assertEquals(List.of("ldc 5", "ldc 7", "if_icmpge L3"), optimized.getLines().subList(3, 6));
+        assertEquals("[small]", runWith(FrameLimits.addLimits(optimized), Backend.JASMIN));
+    }
+
+    @Test
+    void testPeepholeOptimizerResolvesBackwardConstantTests() throws Exception {
+        // The constant at the bottom of the loop jumps back to a test that comes earlier in the method
+        JasminBytecode code = new JasminBytecode("main");
+        code.add(".class public main").add(".super java/lang/Object")
+                .add(".method public static main([Ljava/lang/String;)V")
+                .add("ldc 3").add("istore 1").add("iload 1")
+                .add("L1:").add("ifeq L9")
+                .add("getstatic java/lang/System/out Ljava/io/PrintStream;").add("iload 1")
+                .add("invokevirtual java/io/PrintStream/println(I)V")
+                .add("iinc 1 -1").add("iload 1").add("ifle L9")
+                .add("iconst_1").add("goto L1")
+                .add("L9:").add("return")
+                .add(".end method");
+        JasminBytecode optimized = new PeepholeOptimizer().optimize(code);
+        assertEquals("[3, 2, 1]", runWith(FrameLimits.addLimits(optimized), Backend.JASMIN));
+    }
+
+    @Test
+    void testConditionsBranchDirectly() throws Exception {
+        Compiler c = new Compiler();
+        c.setOptimize(false);
+        JasminBytecode code = c.compileString("quite nothing objective classify<number n> [ "
+                + "assuming<n below 0> [ say<\"negative\">$ ] assuming extra <n ~~ 0> [ say<\"zero\">$ ] "
+                + "assuming extra <<n> above 9> [ say<\"big\">$ ] extra [ say<\"small\">$ ] ] "
+                + "SAIL classify<-3>$ classify<0>$ classify<5>$ classify<12>$ "
+                + "duplicate nan ~ 0.0 / 0.0$ duplicate half ~ 0.5$ "
+                + "assuming<half below 1.0> [ say<\"below\">$ ] assuming<nan below 1.0> [ say<\"nan below\">$ ] "
+                + "assuming<nan above 1.0> [ say<\"nan above\">$ ] assuming<nan ~~ nan> [ say<\"nan equal\">$ ] "
+                + "assuming<nan !~ nan> [ say<\"nan unequal\">$ ] assuming<nay> [ say<\"never\">$ ] "
+                + "number i ~ 0$ meantime<i below 3> [ i ~ i + 1$ ] say<i>$ "
+                + "fer<number j ~ 0$ j below 2$ j++> [ say<j>$ ] say<i ~~ 3>$ RUM", "main");
+
+        assertEquals("[negative, zero, small, big, below, nan unequal, 3, 0, 1, 1]", runWith(code, Backend.JASMIN));
+        assertEquals(runWith(code, Backend.JASMIN), runWith(code, Backend.DIRECT));
+
+        // No condition is turned into a boolean that is tested again, only the printed one
+        List<String> lines = code.getLines();
+        assertFalse(lines.contains("ifeq") || lines.contains("ifne"), code.getText().toString());
+        assertEquals(1, countMaterializedBooleans(lines));
+
+        // The loops only branch once per iteration, at the bottom
+        int loop = lines.indexOf("iadd");
+        assertEquals("istore", Instructions.mnemonic(lines.get(loop + 1)));
+        assertTrue(lines.get(loop + 2).endsWith(":"));
+        assertEquals("if_icmplt", Instructions.mnemonic(lines.get(loop + 5)));
+    }
+
+    /**
+     * Counts the places where the outcome of a condition is pushed as a 1 or 0.
+     */
+    private static int countMaterializedBooleans(List<String> lines) {
+        int count = 0;
+        for (int i = 0; i + 1 < lines.size(); i++) {
+            if (lines.get(i).equals("iconst_1") && lines.get(i + 1).startsWith("goto")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void testAndOrShortCircuit() throws Exception {
+        Compiler c = new Compiler();
+        c.setOptimize(false);
+        JasminBytecode code = c.compileString("quite number objective noisy<number n> [ say<n>$ give n$ ] "
+                + "SAIL assuming<noisy<1> ~~ 1 || noisy<2> ~~ 2> [ say<\"or\">$ ] "
+                + "assuming<noisy<3> ~~ 0 && noisy<4> ~~ 4> [ say<\"and\">$ ] "
+                + "say<noisy<5> ~~ 5 && noisy<6> ~~ 0>$ "
+                + "number a ~ 7$ "
+                + "assuming<<a below 0 || a above 5> && <a !~ 8 || noisy<9> ~~ 9>> [ say<\"nested\">$ ] "
+                + "number i ~ 0$ meantime<i below 10 && <i ~~ 0 || i below 3>> [ i ~ i + 1$ ] say<i>$ RUM", "main");
+
+        assertEquals("[1, or, 3, 5, 6, 0, nested, 3]", runWith(code, Backend.JASMIN));
+        assertEquals(runWith(code, Backend.JASMIN), runWith(code, Backend.DIRECT));
+
+        // Only the printed condition is turned into a boolean, the others are a single tree of jumps
+        List<String> lines = code.getLines();
+        assertEquals(1, countMaterializedBooleans(lines), code.getText().toString());
+        assertFalse(lines.contains("ifeq") || lines.contains("ifne"));
+    }
+
+    @Test
+    void testConstantsUseTheShortestLoad() throws Exception {
+        Compiler c = new Compiler();
+        JasminBytecode code = c.compileString("SAIL say<-1>$ say<5>$ say<6>$ say<-128>$ say<127>$ say<128>$ "
+                + "say<-129>$ say<-32768>$ say<32767>$ say<32768>$ say<2147483647>$ "
+                + "say<0.0>$ say<1.0>$ say<0.0 * -1.0>$ say<2.5>$ RUM", "main");
+
+        List<String> loads = new ArrayList<>();
+        for (String line : code.getLines()) {
+            String mnemonic = Instructions.mnemonic(line);
+            if (mnemonic.contains("const") || mnemonic.contains("push") || mnemonic.startsWith("ldc")) {
+                loads.add(line);
+            }
+        }
+        assertEquals(List.of("iconst_m1", "iconst_5", "bipush 6", "bipush -128", "bipush 127", "sipush 128",
+                "sipush -129", "sipush -32768", "sipush 32767", "ldc 32768", "ldc 2147483647",
+                "dconst_0", "dconst_1", "ldc2_w -0.0d", "ldc2_w 2.5d"), loads);
+
+        String expected = "[-1, 5, 6, -128, 127, 128, -129, -32768, 32767, 32768, 2147483647, 0.0, 1.0, -0.0, 2.5]";
+        for (Backend backend : Backend.values()) {
+            assertEquals(expected, runWith(code, backend));
+        }
+    }
+
+    @Test
+    void testUnreachableCodeIsRemoved() throws Exception {
+        String program = "quite number objective pick<number n> [ assuming<aye> [ say<\"always\">$ ] "
+                + "extra [ say<\"never 1\">$ ] give n$ ] "
+                + "SAIL say<pick<3>>$ assuming<nay> [ number i ~ 0$ meantime<aye> [ i ~ i + 1$ say<\"never 2\">$ ] ] "
+                + "assuming<1 above 2> [ say<\"never 3\">$ ] assuming extra <2 above 1> [ say<\"reached\">$ ] "
+                + "extra [ say<\"never 4\">$ ] RUM";
+
+        Compiler c = new Compiler();
+        JasminBytecode code = c.compileString(program, "main");
+        assertFalse(code.getText().toString().contains("never"), code.getText().toString());
+        assertEquals(List.of("dead code pick(I)I: removed 3 instructions",
+                "dead code main([Ljava/lang/String;)V: removed 18 instructions"),
+                c.getOptimizationReport().subList(0, 2));
+        assertEquals(21, c.getMetrics().getPhase(CompileMetrics.OPTIMIZER).getCounts().get("deadInstructions"));
+
+        Compiler plain = new Compiler();
+        plain.setOptimize(false);
+        JasminBytecode unoptimized = plain.compileString(program, "main");
+        assertTrue(AssembledClass.assemble(code).getClassBytes().length
+                < AssembledClass.assemble(unoptimized).getClassBytes().length);
+        for (Backend backend : Backend.values()) {
+            assertEquals("[always, 3, reached]", runWith(code, backend));
+            assertEquals(runWith(unoptimized, backend), runWith(code, backend));
+        }
+    }
+
+    @Test
+    void testLoopInvariantsAreComputedBeforeTheLoop() throws Exception {
+        String program = "SAIL number n ~ 7$ duplicate f ~ 1.5$ number total ~ 0$ duplicate scaled ~ 0.0$ "
+                + "fer<number i ~ 0$ i below n * 3 + 1$ i++> [ total ~ total + <n * n> * i$ scaled ~ scaled + f * 2.5$ "
+                + "number k ~ 0$ meantime<k below n - 5> [ total ~ total + n * 4 - k$ k++$ ] ] "
+                + "number d ~ 0$ number m ~ 1$ meantime<m below 5> [ m++$ d ~ d + m * 2$ n ~ n / 2$ ] "
+                + "meantime<nay> [ say<n / 0>$ ] say<total>$ say<scaled>$ say<d>$ say<n>$ RUM";
+
+        Compiler c = new Compiler();
+        JasminBytecode code = c.compileString(program, "main");
+        // n * 3 + 1, n * n, f * 2.5, n - 5 and n * 4 move before the for loop; m * 2, n / 2 and
+        // n / 0 can't move
+        assertEquals(5, c.getMetrics().getPhase(CompileMetrics.LOOP_INVARIANTS).getCounts().get("hoistedExpressions"));
+        assertEquals("loop invariants main: moved 5 expressions out of loops", c.getOptimizationReport().get(0));
+
+        List<String> lines = code.getLines();
+        int loop = lines.indexOf("goto L2");
+        assertEquals(6, lines.subList(0, loop).stream().filter(line -> line.equals("imul") || line.equals("dmul")
+                || line.equals("isub") || line.equals("iadd") || line.equals("ishl")).count(), code.getText().toString());
+
+        Compiler plain = new Compiler();
+        plain.setOptimize(false);
+        JasminBytecode unoptimized = plain.compileString(program, "main");
+        for (Backend backend : Backend.values()) {
+            assertEquals("[12529, 82.5, 28, 0]", runWith(code, backend));
+            assertEquals(runWith(unoptimized, backend), runWith(code, backend));
+        }
+    }
+
+    @Test
+    void testArithmeticIsStrengthReduced() throws Exception {
+        String program = "SAIL number x ~ 13$ number y ~ -7$ number a ~ 0$ a ~ a + 1$ a ~ a - 299$ a ~ 5 + a$ "
+                + "say<a>$ say<x * 8>$ say<4 * y>$ say<y * 1>$ say<y / -1>$ say<y * 0>$ say<y * -2147483648>$ "
+                + "say<x / 1 + 0 - 0>$ duplicate d ~ 0.0 * -1.0$ say<d * 1.0>$ say<d - 0.0>$ say<d + 0.0>$ "
+                + "say<1.0 * d>$ RUM";
+
+        Compiler c = new Compiler();
+        JasminBytecode code = c.compileString(program, "main");
+        List<String> lines = code.getLines();
+        assertTrue(lines.contains("iinc 2 1"), code.getText().toString());
+        assertTrue(lines.contains("iinc 2 -299"), code.getText().toString());
+        assertTrue(lines.contains("ishl"), code.getText().toString());
+        assertFalse(lines.contains("imul") || lines.contains("idiv") || lines.contains("dmul"),
+                code.getText().toString());
+        // d + 0.0 is 0.0 when d is -0.0, so it has to stay
+        assertTrue(lines.contains("dadd"), code.getText().toString());
+        assertTrue(c.getMetrics().getPhase(CompileMetrics.OPTIMIZER).getCounts().get("simplifiedOperations") > 0);
+        assertTrue(c.getOptimizationReport().stream().anyMatch(line -> line.startsWith("arithmetic main(")));
+
+        Compiler plain = new Compiler();
+        plain.setOptimize(false);
+        JasminBytecode unoptimized = plain.compileString(program, "main");
+        for (Backend backend : Backend.values()) {
+            assertEquals("[-293, 104, -28, -7, 7, 0, -2147483648, 13, -0.0, -0.0, 0.0, -0.0]", runWith(code, backend));
+            assertEquals(runWith(unoptimized, backend), runWith(code, backend));
+        }
+    }
+
+    @Test
+    void testClosedScopesShareSlots() throws Exception {
+        String program = "SAIL number n ~ 5$ assuming<n above 1> [ number a ~ n + 1$ say<a>$ ] "
+                + "assuming<n above 2> [ duplicate b ~ 2.5$ say<b>$ number c ~ 3$ say<c>$ ] "
+                + "fer<number i ~ 0$ i below n$ i++> [ say<i * <n * 3>>$ ] "
+                + "fer<number j ~ 0$ j below 2$ j++> [ duplicate d ~ 1.5$ say<d>$ say<j + n * 7>$ ] RUM";
+
+        Compiler c = new Compiler();
+        JasminBytecode code = c.compileString(program, "main");
+        // n in 0, a, b, c, i, j and d in 1 to 3, and n * 3 and n * 7 both in 4
+        assertTrue(code.getLines().contains(".limit locals 5"), code.getText().toString());
+        assertTrue(code.getLines().contains("dstore 1"));
+        assertTrue(code.getLines().contains("istore 3"));
+
+        for (Backend backend : Backend.values()) {
+            assertEquals("[6, 2.5, 3, 0, 15, 30, 45, 60, 1.5, 35, 1.5, 36]", runWith(code, backend));
+        }
+    }
+
+    @Test
+    void testSmallMethodsAreInlined() throws Exception {
+        String program = "quite number objective square<number a> [ give a * a$ ] "
+                + "quite duplicate objective half<duplicate d, number k> [ duplicate h ~ d / 2.0$ "
+                + "assuming<k above 0> [ h ~ h + 1.0$ ] give h$ ] "
+                + "quite nothing objective shout<rope s, number times> [ assuming<times above 0> [ say<s>$ ] ] "
+                + "quite number objective fact<number n> [ number r ~ 1$ assuming<n above 1> [ r ~ n * fact<n - 1>$ ] give r$ ] "
+                + "quite number objective big<number n> [ number x ~ n * 3 + square<n> - n / 7$ x ~ x * x - 5$ "
+                + "x ~ x + n * 11$ give x * 2 + 1$ ] "
+                + "SAIL number total ~ 0$ fer<number i ~ 0$ i below 4$ i++> [ total ~ total + square<i + 1>$ ] "
+                + "say<total>$ say<square<3> + square<4>>$ say<half<5.0, 1>>$ say<half<5.0, 0>>$ "
+                + "shout<\"hi\", 1>$ shout<\"quiet\", 0>$ say<fact<5>>$ say<big<6>>$ RUM";
+
+        Compiler c = new Compiler();
+        c.setInlineBudget(12);
+        JasminBytecode code = c.compileString(program, "main");
+        String text = code.getText().toString();
+        assertFalse(text.contains("invokestatic main/square(I)I\ninvokevirtual"), text);
+        assertFalse(text.contains("invokestatic main/half"), text);
+        assertFalse(text.contains("invokestatic main/shout"), text);
+        // Recursive and too big
+        assertTrue(text.contains("invokestatic main/fact"), text);
+        assertTrue(text.contains("invokestatic main/big"), text);
+
+        List<String> report = c.getOptimizationReport();
+        assertTrue(report.contains("inline main([Ljava/lang/String;)V: inlined 3 calls to square(I)I"), report.toString());
+        assertTrue(report.contains("inline main([Ljava/lang/String;)V: inlined 2 calls to half(DI)D"), report.toString());
+        assertTrue(report.contains("inline big(I)I: inlined 1 calls to square(I)I"), report.toString());
+        assertEquals(8, c.getMetrics().getPhase(CompileMetrics.OPTIMIZER).getCounts().get("inlinedCalls"));
+
+        // Not inlined by default
+        Compiler plain = new Compiler();
+        JasminBytecode notInlined = plain.compileString(program, "main");
+        assertEquals(0, plain.getMetrics().getPhase(CompileMetrics.OPTIMIZER).getCounts().get("inlinedCalls"));
+        assertTrue(notInlined.getText().toString().contains("invokestatic main/half"));
+
+        for (Backend backend : Backend.values()) {
+            assertEquals("[30, 25, 3.5, 2.5, hi, 120, 5955]", runWith(code, backend));
+            assertEquals(runWith(notInlined, backend), runWith(code, backend));
+        }
+    }
+
+    @Test
+    void testArrays() throws Exception {
+        String program = "quite number objective sum<number[] xs> [ number total ~ 0$ "
+                + "fer<number i ~ 0$ i below xs.length$ i++> [ total ~ total + xs[i]$ ] give total$ ] "
+                + "SAIL number[] a ~ number[12]$ fer<number i ~ 0$ i below a.length$ i++> [ a[i] ~ i * i$ ] "
+                + "say<sum<a>>$ duplicate[] d ~ duplicate[3]$ d[1] ~ 2.5$ d[2] ~ d[1] * 2.0$ say<d[2] + d[0]>$ "
+                + "say<d.length>$ a ~ number[2]$ say<a.length>$ say<a[1]>$ RUM";
+
+        Compiler c = new Compiler();
+        JasminBytecode code = c.compileString(program, "main");
+        List<String> lines = code.getLines();
+        assertTrue(lines.contains("newarray int") && lines.contains("newarray double"), code.getText().toString());
+        assertTrue(lines.contains(".method private static sum([I)I"));
+
+        // The length is read once before the loop, which counts up with iinc and tests at the bottom
+        // sum is the first method, so this is its loop
+        List<String> loop = lines.subList(lines.indexOf("arraylength") + 1, lines.indexOf("ireturn"));
+        assertEquals(List.of("istore 3", "goto L2", "L1:", "iload 1", "aload 0", "iload 2", "iaload", "iadd",
+                "istore 1", "iinc 2 1", "L2:", "iload 2", "iload 3", "if_icmplt L1", "iload 1"), loop);
+
+        for (Backend backend : Backend.values()) {
+            assertEquals("[506, 5.0, 3, 2, 0]", runWith(code, backend));
+        }
+
+        for (String wrong : List.of("SAIL number[] a ~ duplicate[2]$ RUM", "SAIL number[] a ~ number[2.0]$ RUM",
+                "SAIL number a ~ 1$ say<a[0]>$ RUM", "SAIL number[] a ~ number[2]$ a[0] ~ 1.5$ RUM",
+                "SAIL number[] a ~ number[2]$ say<a + a>$ RUM", "SAIL number[] a ~ number[3]$ say<a>$ RUM",
+                "SAIL duplicate[] a ~ duplicate[3]$ say<<a>>$ RUM")) {
+            assertNull(new Compiler().compileString(wrong, "main"), wrong);
+        }
+    }
+
+    @Test
+    void testRopesAreJoinedWithOneBuilder() throws Exception {
+        String program = "SAIL rope s ~ \"a\"$ number n ~ 3$ duplicate d ~ 1.5$ say<s + n + d + \"b\">$ "
+                + "say<1 + 2 + s>$ say<s + <1 + 2>>$ say<s + <\"x\" + n>>$ "
+                + "rope t ~ \"\"$ fer<number i ~ 0$ i below 3$ i++> [ t ~ t + i$ ] say<t>$ RUM";
+
+        Compiler c = new Compiler();
+        JasminBytecode code = c.compileString(program, "main");
+        // One for every chain, <"x" + n> included in the one around it
+        assertEquals(5, code.getLines().stream().filter(line -> line.equals("new java/lang/StringBuilder")).count(),
+                code.getText().toString());
+        assertTrue(code.getLines().contains("invokevirtual java/lang/StringBuilder/append(D)Ljava/lang/StringBuilder;"));
+
+        for (Backend backend : Backend.values()) {
+            assertEquals("[a31.5b, 3a, a3, ax3, 012]", runWith(code, backend));
+        }
+
+        assertNull(new Compiler().compileString("SAIL number[] a ~ number[2]$ say<\"a\" + a>$ RUM", "main"));
+    }
+
+    @Test
+    void testBufferedOutput() throws Exception {
+        String program = "quite nothing objective shout<rope s, number n> [ say<s + n>$ say<n>$ ] "
+                + "SAIL say<1>$ say<2.5>$ say<\"three\">$ say<1 below 2>$ shout<\"x\", 4>$ "
+                + "fer<number i ~ 0$ i below 3$ i++> [ say<i>$ ] RUM";
+        // Much more than fits in the buffer at once
+        String many = "SAIL fer<number i ~ 0$ i below 2999$ i++> [ say<i>$ say<\"line\">$ ] RUM";
+
+        Compiler buffered = new Compiler();
+        buffered.setBufferedOutput(true);
+        JasminBytecode code = buffered.compileString(program, "main");
+        // Only the say$ methods print straight away, when there is no buffer
+        String text = code.getText().toString();
+        assertEquals(3, text.split("println").length - 1, text);
+        JasminBytecode manyCode = buffered.compileString(many, "main");
+
+        for (Backend backend : Backend.values()) {
+            assertEquals("[1, 2.5, three, 1, x4, 4, 0, 1, 2]", runWith(code, backend));
+            assertEquals(runWith(new Compiler().compileString(many, "main"), backend), runWith(manyCode, backend));
+        }
+
+        // What was said before an exception is still printed
+        LoadedProgram failing = LoadedProgram.load(
+                buffered.assemble(buffered.compileString("SAIL say<\"before\">$ say<1 / 0>$ RUM", "main")));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertThrows(ArithmeticException.class, () -> failing.run(output));
+        assertEquals("before" + System.lineSeparator(), output.toString());
+
+        // A thread only has a buffer while it runs main, before and after that say prints right away
+        Class<?> shouting = define(buffered.assemble(buffered.compileString(
+                "loud nothing objective shout<number n> [ say<n>$ ] SAIL shout<1>$ RUM", "main")));
+        Method shout = shouting.getMethod("shout", int.class);
+        PrintStream original = System.out;
+        ByteArrayOutputStream said = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(said, true));
+        try {
+            shout.invoke(null, 2);
+            shouting.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+            shout.invoke(null, 3);
+        } finally {
+            System.setOut(original);
+        }
+        assertEquals(String.join(System.lineSeparator(), "2", "1", "3", ""), said.toString());
+    }
+
+    /**
+     * Loads the class in a class loader of its own, to get at its methods and fields.
+     */
+    private static Class<?> define(AssembledClass assembledClass) {
+        byte[] bytes = assembledClass.getClassBytes();
+        return new ClassLoader() {
+            Class<?> define() {
+                return defineClass(null, bytes, 0, bytes.length);
+            }
+        }.define();
+    }
+
+    @Test
+    void testTailCallsBecomeJumps() throws Exception {
+        String program = "quite nothing objective count<number n, number total> [ assuming<n above 0> [ "
+                + "count<n - 1, total + n>$ ] extra [ say<total>$ ] ] "
+                + "quite nothing objective swap<number a, number b, number k> [ assuming<k above 0> [ "
+                + "swap<b, a, k - 1>$ ] extra [ say<a>$ say<b>$ ] ] "
+                + "quite nothing objective grow<rope s, duplicate d, number k> [ assuming<k ~~ 0> [ say<s>$ say<d>$ ] "
+                + "extra [ grow<s + \"!\", d * 2.0, k - 1>$ ] ] "
+                + "quite number objective fact<number n> [ number r ~ 1$ assuming<n above 1> [ r ~ n * fact<n - 1>$ ] give r$ ] "
+                + "SAIL count<999999, 0>$ swap<1, 2, 3>$ grow<\"a\", 1.5, 3>$ say<fact<5>>$ RUM";
+
+        JasminBytecode code = new Compiler().compileString(program, "main");
+        String text = code.getText().toString();
+        // Only the calls from main are left
+        assertEquals(1, text.split("invokestatic main/count").length - 1, text);
+        assertEquals(1, text.split("invokestatic main/swap").length - 1, text);
+        assertEquals(1, text.split("invokestatic main/grow").length - 1, text);
+        // Not a tail call, the multiplication comes after it
+        assertEquals(2, text.split("invokestatic main/fact").length - 1, text);
+
+        int total = 0;
+        for (int i = 1; i <= 999999; i++) {
+            total += i;
+        }
+        for (Backend backend : Backend.values()) {
+            assertEquals("[" + total + ", 2, 1, a!!!, 12.0, 120]", runWith(code, backend));
+        }
+
+        // A method that gives its own value only ends by an exception, but doesn't run out of stack
+        JasminBytecode endless = new Compiler().compileString("quite number objective down<number n> [ "
+                + "number x ~ 10 / n$ give <down<n - 1>>$ ] SAIL say<down<999999>>$ RUM", "main");
+        assertFalse(endless.getText().toString().contains("ireturn"), endless.getText().toString());
+        LoadedProgram down = LoadedProgram.load(new Compiler().assemble(endless));
+        assertThrows(ArithmeticException.class, () -> down.run(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void testStashedObjectivesRememberWhatTheyGave() throws Exception {
+        // Without the cache, fib<40> makes hundreds of millions of calls
+        String program = "quite stashed number objective fib<number n> [ number r ~ n$ "
+                + "assuming<n above 1> [ r ~ fib<n - 1> + fib<n - 2>$ ] give r$ ] "
+                + "quite stashed rope objective label<rope s, number k> [ give s + k$ ] "
+                + "quite stashed duplicate objective half<duplicate d> [ give d / 2.0$ ] "
+                + "quite stashed number objective pair<number a, number b> [ give a * 10 - b$ ] "
+                + "SAIL say<fib<40>>$ say<label<\"x\", 3>>$ say<label<\"x\", 3>>$ say<label<\"x\", 4>>$ "
+                + "say<half<5.0>>$ say<half<5.0>>$ say<pair<-1, 2>>$ say<pair<2, -1>>$ say<pair<-1, 2>>$ RUM";
+        JasminBytecode code = new Compiler().compileString(program, "main");
+        assertTrue(code.getText().toString().contains("invokestatic main/fib$body(I)I"), code.getText().toString());
+        for (Backend backend : Backend.values()) {
+            assertEquals("[102334155, x3, x3, x4, 2.5, 2.5, -12, 21, -12]", runWith(code, backend));
+        }
+
+        // With room for two values, 3 takes the place of 2, which was used longer ago than 1
+        Compiler small = new Compiler();
+        small.setMemoCacheSize(2);
+        Class<?> square = define(small.assemble(small.compileString("quite stashed number objective square<number n> [ "
+                + "give n * n$ ] SAIL number x ~ square<1> + square<2> + square<1> + square<3> + square<1> + square<2>$ RUM",
+                "main")));
+        square.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        // The hits, misses and size
+        int[] stats = (int[]) square.getMethod("square$stats").invoke(null);
+        assertArrayEquals(new int[] {2, 4, 2}, stats);
+
+        // Only objectives that give something and say nothing can be stashed
+        assertNull(new Compiler().compileString("quite stashed number objective f<number n> [ say<n>$ give n$ ] "
+                + "SAIL say<f<1>>$ RUM", "main"));
+        assertNull(new Compiler().compileString("quite number objective loudly<number n> [ say<n>$ give n$ ] "
+                + "quite stashed number objective f<number n> [ give loudly<n> + 1$ ] SAIL say<f<1>>$ RUM", "main"));
+        assertNull(new Compiler().compileString("quite stashed nothing objective f<number n> [ number m ~ n$ ] "
+                + "SAIL f<1>$ RUM", "main"));
+        assertNull(new Compiler().compileString("quite stashed number objective f<number[] xs> [ give xs[0]$ ] "
+                + "SAIL number[] a ~ number[1]$ say<f<a>>$ RUM", "main"));
+        assertNotNull(new Compiler().compileString("quite number objective twice<number n> [ give n * 2$ ] "
+                + "quite stashed number objective f<number n> [ give twice<n> + 1$ ] SAIL say<f<1>>$ RUM", "main"));
+    }
+}
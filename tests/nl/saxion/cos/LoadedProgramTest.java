@@ -0,0 +1,54 @@
+package nl.saxion.cos;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadedProgramTest {
+	private static LoadedProgram load( String source ) throws Exception {
+		Compiler compiler = new Compiler();
+		return LoadedProgram.load(compiler.assemble(compiler.compileString(source, "main")));
+	}
+
+	@Test
+	void testProgramRunsManyTimes() throws Exception {
+		LoadedProgram program = load("SAIL say<\"ahoy\">$ say<2 * 3>$ RUM");
+
+		assertEquals("main", program.getClassName());
+		for( int i = 0; i < 100; i++ )
+			assertEquals("ahoy\n6\n", program.run().replace("\r", ""));
+	}
+
+	@Test
+	void testConcurrentRunsCaptureTheirOwnOutput() throws Exception {
+		LoadedProgram program = load("SAIL number a ~ 0$ meantime<a below 50> [ say<a>$ a++$ ] RUM");
+		StringBuilder expected = new StringBuilder();
+		for( int i = 0; i < 50; i++ )
+			expected.append(i).append('\n');
+
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> runs = new ArrayList<>();
+			for( int i = 0; i < 200; i++ )
+				runs.add(threads.submit(() -> program.run()));
+			for( Future<String> run : runs )
+				assertEquals(expected.toString(), run.get().replace("\r", ""));
+		} finally {
+			threads.shutdown();
+		}
+	}
+
+	@Test
+	void testOutputOutsideRunsIsNotCaptured() throws Exception {
+		LoadedProgram program = load("SAIL say<\"inside\">$ RUM");
+		System.out.println("outside");
+
+		assertEquals("inside\n", program.run().replace("\r", ""));
+	}
+}